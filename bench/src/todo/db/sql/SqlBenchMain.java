@@ -0,0 +1,16 @@
+package todo.db.sql;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Runs the JMH benchmarks with the GC profiler always on, so every result
+// reports allocation rate next to throughput. Accepts the usual JMH options.
+public class SqlBenchMain {
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder().parent(new CommandLineOptions(args)).addProfiler(GCProfiler.class).build()).run();
+	}
+
+}
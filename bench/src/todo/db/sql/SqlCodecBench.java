@@ -0,0 +1,96 @@
+package todo.db.sql;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import todo.db.Task;
+
+// Row decode and parameter binding without executing a query. _readTask is
+// private in SqlDb, so it is called through a private lookup; the handle is
+// the same for all ops and adds a constant cost. mapperReadTask decodes the
+// same rows with the runtime SqlMapper and then takes the change-tracking
+// snapshot through _snapshotTask, as _readTask does, so both do equal work.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class SqlCodecBench {
+
+	@State(Scope.Benchmark)
+	public static class Rows {
+
+		MethodHandle readTask;
+		MethodHandle snapshotTask;
+		SqlMapper<Task> mapper;
+		Connection con;
+		PreparedStatement select;
+		ResultSet rst;
+		PreparedStatement bind;
+		int row;
+
+		@Setup(Level.Trial)
+		public void setup(SqlDbState state) throws Throwable {
+			MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(SqlDb.class, MethodHandles.lookup());
+			readTask = lookup.findVirtual(SqlDb.class, "_readTask", MethodType.methodType(Task.class, ResultSet.class, SqlIndex.class));
+			snapshotTask = lookup.findVirtual(SqlDb.class, "_snapshotTask", MethodType.methodType(Task.class, Task.class));
+			mapper = SqlMapper.of(Task.class, "tasks", "created", "userId", "title", "status:ordinal");
+			con = DriverManager.getConnection(SqlDb.DB_URL, SqlDb.DB_USER, SqlDb.DB_PASSWORD);
+			select = con.prepareStatement("SELECT id,created,userId,title,status FROM tasks",
+					ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
+			rst = select.executeQuery();
+			bind = con.prepareStatement("SELECT id FROM tasks WHERE id=? AND created=? AND title=? AND status=?");
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws Exception {
+			rst.close();
+			select.close();
+			bind.close();
+			con.close();
+		}
+
+	}
+
+	@Benchmark
+	public Task readTask(SqlDbState state, Rows rows) throws Throwable {
+		rows.row = rows.row % state.rows + 1;
+		rows.rst.absolute(rows.row);
+		return (Task) rows.readTask.invokeExact(state.db, rows.rst, new SqlIndex());
+	}
+
+	@Benchmark
+	public Task mapperReadTask(SqlDbState state, Rows rows) throws Throwable {
+		rows.row = rows.row % state.rows + 1;
+		rows.rst.absolute(rows.row);
+		return (Task) rows.snapshotTask.invokeExact(state.db, rows.mapper.read(rows.rst, new SqlIndex()));
+	}
+
+	@Benchmark
+	public PreparedStatement writeParams(Rows rows) throws Exception {
+		SqlParams params = SqlParams.of("id").and(Instant.EPOCH).and("title").and(1);
+		params.writeTo(rows.bind, new SqlIndex());
+		return rows.bind;
+	}
+
+}
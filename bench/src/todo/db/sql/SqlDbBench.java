@@ -0,0 +1,55 @@
+package todo.db.sql;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import todo.db.Fetch;
+import todo.db.Task;
+import todo.db.TaskStatus;
+import todo.db.User;
+
+// End-to-end SqlDb calls: one transaction per op. saveUser and saveTask insert
+// a new row each op, so the tables grow a little during measurement.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class SqlDbBench {
+
+	@Benchmark
+	public User saveUser(SqlDbState state) {
+		int n = state.seq++;
+		User user = new User(null, "bench" + n, "pw" + n);
+		state.db.saveUser(user);
+		return user;
+	}
+
+	@Benchmark
+	public Task saveTask(SqlDbState state) {
+		User user = state.nextUser();
+		Task task = new Task(null, Instant.now(), user.getId(), "bench", TaskStatus.Waiting);
+		state.db.saveTask(task);
+		return task;
+	}
+
+	@Benchmark
+	public List<Task> findTasks(SqlDbState state) {
+		return state.db.findTasks(Fetch.Join);
+	}
+
+	@Benchmark
+	public List<User> findUsers(SqlDbState state) {
+		return state.db.findUsers(Fetch.Join);
+	}
+
+}
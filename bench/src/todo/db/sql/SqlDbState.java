@@ -0,0 +1,76 @@
+package todo.db.sql;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import todo.db.Task;
+import todo.db.TaskStatus;
+import todo.db.User;
+
+// A SqlDb filled with `rows` tasks spread over rows/10 users. The in-memory
+// database is shut down after each trial so the next one starts empty.
+@State(Scope.Benchmark)
+public class SqlDbState {
+
+	private static final int CHUNK = 10_000;
+
+	static {
+		System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn");
+	}
+
+	@Param({ "1000", "100000", "1000000" })
+	public int rows;
+
+	public SqlDb db;
+	public List<User> users;
+	public int seq;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		db = new SqlDb();
+		int userCount = Math.max(1, rows / 10);
+		users = new ArrayList<>(userCount);
+		for (int i = 0; i < userCount; i++) {
+			users.add(new User(null, "user" + i, "pw" + i));
+		}
+		for (int i = 0; i < userCount; i += CHUNK) {
+			db.saveUsers(users.subList(i, Math.min(userCount, i + CHUNK)));
+		}
+		Instant now = Instant.parse("2019-01-01T00:00:00Z");
+		TaskStatus[] statuses = TaskStatus.values();
+		List<Task> tasks = new ArrayList<>(CHUNK);
+		for (int i = 0; i < rows; i++) {
+			String userId = users.get(i % userCount).getId();
+			tasks.add(new Task(null, now.plusSeconds(i), userId, "task" + i, statuses[i % statuses.length]));
+			if (tasks.size() == CHUNK || i == rows - 1) {
+				db.saveTasks(tasks);
+				tasks.clear();
+			}
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		db.close();
+		try (Connection con = DriverManager.getConnection(SqlDb.DB_URL, SqlDb.DB_USER, SqlDb.DB_PASSWORD);
+				Statement st = con.createStatement()) {
+			st.execute("SHUTDOWN");
+		}
+	}
+
+	public User nextUser() {
+		return users.get(seq++ % users.size());
+	}
+
+}
@@ -0,0 +1,76 @@
+package todo.db.sql;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import todo.db.Task;
+import todo.db.TaskStatus;
+import todo.db.User;
+
+// Concurrent saveTask callers with and without group commit.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(32)
+@State(Scope.Benchmark)
+public class SqlGroupCommitBench {
+
+	static {
+		System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn");
+	}
+
+	// maxItems/maxWaitMicros, or off
+	@Param({ "off", "64/50", "256/200" })
+	public String groupCommit;
+
+	SqlDb db;
+	User user;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		db = new SqlDb();
+		user = new User(null, "bench", "pw");
+		db.saveUser(user);
+		if (!groupCommit.equals("off")) {
+			String[] parts = groupCommit.split("/");
+			db.enableGroupCommit(Integer.parseInt(parts[0]), Long.parseLong(parts[1]));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		db.close();
+		try (Connection con = DriverManager.getConnection(SqlDb.DB_URL, SqlDb.DB_USER, SqlDb.DB_PASSWORD);
+				Statement st = con.createStatement()) {
+			st.execute("SHUTDOWN");
+		}
+	}
+
+	@Benchmark
+	public Task saveTask() {
+		Task task = new Task(null, Instant.now(), user.getId(), "bench", TaskStatus.Waiting);
+		db.saveTask(task);
+		return task;
+	}
+
+}
@@ -0,0 +1,37 @@
+package todo.db.sql;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Id generation: the old random uuid ids against the time-ordered default.
+// Run with -t max to see them under contention.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SqlIdBench {
+
+	private final SqlIdGenerator time = new SqlTimeIdGenerator();
+
+	@Benchmark
+	public String uuid() {
+		return SqlIdGenerator.RANDOM_UUID.nextId();
+	}
+
+	@Benchmark
+	public String timeOrdered() {
+		return time.nextId();
+	}
+
+}
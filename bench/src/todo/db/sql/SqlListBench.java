@@ -0,0 +1,110 @@
+package todo.db.sql;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import todo.db.User;
+
+// Indexing users by id: SqlList against the ArrayList plus HashMap it
+// replaced. gc.alloc.rate.norm is the bytes allocated per build; for the
+// presized SqlList that is what the list retains, the others also count
+// the arrays dropped while growing. main() prints the heap each structure
+// retains for 1M users, measured after GC:
+//
+//   java -Xms2g -Xmx2g -cp bench/target/benchmarks.jar todo.db.sql.SqlListBench
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+@State(Scope.Benchmark)
+public class SqlListBench {
+
+	@Param({ "1000", "1000000" })
+	public int size;
+
+	List<User> users;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		users = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			users.add(new User(String.format("%026d", i), "login" + i, "pw"));
+		}
+	}
+
+	@Benchmark
+	public Object arrayListAndHashMap() {
+		ArrayList<User> list = new ArrayList<>();
+		HashMap<String, User> map = new HashMap<>();
+		for (User user : users) {
+			list.add(user);
+			map.put(user.getId(), user);
+		}
+		return new Object[] { list, map };
+	}
+
+	@Benchmark
+	public SqlList<User> sqlList() {
+		SqlList<User> list = new SqlList<>();
+		for (User user : users) {
+			list.add(user);
+		}
+		return list;
+	}
+
+	@Benchmark
+	public SqlList<User> sqlListPresized() {
+		SqlList<User> list = new SqlList<>(size);
+		for (User user : users) {
+			list.add(user);
+		}
+		return list;
+	}
+
+	private static Object retained;
+
+	public static void main(String[] args) {
+		SqlListBench bench = new SqlListBench();
+		bench.size = 1_000_000;
+		bench.setup();
+		// warm up, so the first measurement does not pay for class loading
+		measure(bench::sqlList);
+		System.out.printf("arrayListAndHashMap: %,13d bytes%n", measure(bench::arrayListAndHashMap));
+		System.out.printf("sqlList:             %,13d bytes%n", measure(bench::sqlList));
+		System.out.printf("sqlListPresized:     %,13d bytes%n", measure(bench::sqlListPresized));
+	}
+
+	private static long measure(Supplier<Object> builder) {
+		long before = usedHeap();
+		retained = builder.get();
+		long after = usedHeap();
+		retained = null;
+		return after - before;
+	}
+
+	private static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+}
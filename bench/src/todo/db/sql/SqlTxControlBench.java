@@ -0,0 +1,112 @@
+package todo.db.sql;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import todo.db.Task;
+import todo.db.TaskStatus;
+import todo.db.User;
+
+// findTasks scans running next to saveTask writers, per transaction control
+// mode. JMH reports the throughput of readers and writers separately. Each
+// writer updates its own tasks, so the table does not grow during the run.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SqlTxControlBench {
+
+	static {
+		System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn");
+	}
+
+	@Param({ "LOCKS", "MVLOCKS", "MVCC" })
+	public SqlTxControl txControl;
+
+	@Param({ "10000" })
+	public int rows;
+
+	// tasks updated round-robin by one writer thread
+	@State(Scope.Thread)
+	public static class Writer {
+
+		List<Task> tasks;
+		int seq;
+
+		@Setup(Level.Trial)
+		public void setup(SqlTxControlBench bench) {
+			tasks = new ArrayList<>(100);
+			Instant now = Instant.now();
+			for (int i = 0; i < 100; i++) {
+				tasks.add(new Task(null, now, bench.user.getId(), "writer" + i, TaskStatus.Waiting));
+			}
+			bench.db.saveTasks(tasks);
+		}
+	}
+
+	SqlDb db;
+	User user;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		db = new SqlDb(txControl);
+		user = new User(null, "bench", "pw");
+		db.saveUser(user);
+		Instant now = Instant.parse("2019-01-01T00:00:00Z");
+		List<Task> tasks = new ArrayList<>(rows);
+		for (int i = 0; i < rows; i++) {
+			tasks.add(new Task(null, now.plusSeconds(i), user.getId(), "task" + i, TaskStatus.Waiting));
+		}
+		db.saveTasks(tasks);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		db.close();
+		try (Connection con = DriverManager.getConnection(SqlDb.DB_URL, SqlDb.DB_USER, SqlDb.DB_PASSWORD);
+				Statement st = con.createStatement()) {
+			st.execute("SHUTDOWN");
+		}
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(4)
+	public List<Task> findTasks() {
+		return db.findTasks();
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(4)
+	public Task saveTask(Writer writer) {
+		Task task = writer.tasks.get(writer.seq++ % writer.tasks.size());
+		task.setTitle("bench" + writer.seq);
+		db.saveTask(task);
+		return task;
+	}
+
+}
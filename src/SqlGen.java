@@ -5,19 +5,39 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.LineNumberReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.StringJoiner;
+import java.util.stream.Collectors;
 
 public class SqlGen {
 
 	public static final boolean VERBOSE = true;
 	public static final String SOURCE_DIR = "src/sample/todo";
 	public static final String DEST_FILE = "src/sample/todo/org/cvilsmeier/todo/db/sql/SqlDb.java"; // empty means print code to stdout
+	public static final String CACHE_FILE = ".sqlgen-cache"; // empty means no cache
+	public static final String ID_COLUMN_TYPE = "VARCHAR(100)"; // ids and refs, room for external ids
+	public static final int DEFAULT_VARCHAR_SIZE = 100; // String columns without @sql-size
 
 	public static final String SQL_CLASS_MARKER = "@" + "sql-class";
 	public static final String SQL_TABLE_MARKER = "@" + "sql-table";
@@ -25,6 +45,14 @@ public class SqlGen {
 	public static final String SQL_NO_UPDATE_MARKER = "@" + "sql-no-update";
 	public static final String SQL_NO_INSERT_MARKER = "@" + "sql-no-insert";
 	public static final String SQL_FIELDS_MARKER = "@" + "sql-fields";
+	public static final String SQL_REF_MARKER = "@" + "sql-ref";
+	public static final String SQL_ORDER_MARKER = "@" + "sql-order";
+	public static final String SQL_SORT_MARKER = "@" + "sql-sort";
+	public static final String SQL_ENUM_MARKER = "@" + "sql-enum";
+	public static final String SQL_INDEX_MARKER = "@" + "sql-index";
+	public static final String SQL_UNIQUE_MARKER = "@" + "sql-unique";
+	public static final String SQL_SIZE_MARKER = "@" + "sql-size";
+	public static final String SQL_COUNT_MARKER = "@" + "sql-count";
 	public static final String SQL_BEGIN_MARKER = "@" + "sql-begin";
 	public static final String SQL_END_MARKER = "@" + "sql-end";
 
@@ -51,9 +79,15 @@ public class SqlGen {
 		}
 	}
 
-	static class Field {
+	// Field and Klass are cached with java serialization. They have no
+	// serialVersionUID on purpose: a changed class invalidates the cache.
+	@SuppressWarnings("serial")
+	static class Field implements Serializable {
 		final String javaType;
 		final String name;
+		String ref; // name of the referenced klass, null if none
+		String enumMode; // "ordinal" or "code", null means enum name as varchar
+		int size; // varchar size, 0 means DEFAULT_VARCHAR_SIZE
 
 		Field(String javaType, String name) {
 			super();
@@ -62,13 +96,19 @@ public class SqlGen {
 		}
 	}
 
-	static class Klass {
+	@SuppressWarnings("serial")
+	static class Klass implements Serializable {
 		final String name;
 		String table;
 		boolean write = true;
 		boolean insert = true;
 		boolean update = true;
 		final List<Field> fields = new ArrayList<>();
+		final List<List<String>> orders = new ArrayList<>();
+		List<String> sort = null; // order of select-all and relation queries, null means first order or id
+		final List<List<String>> indexes = new ArrayList<>();
+		final List<List<String>> uniques = new ArrayList<>();
+		final List<String> counts = new ArrayList<>();
 
 		Klass(String name, String table) {
 			super();
@@ -92,27 +132,125 @@ public class SqlGen {
 		}
 	}
 
+	@SuppressWarnings("serial")
+	static class Scan implements Serializable {
+		final String hash;
+		final List<Klass> klasses;
+
+		Scan(String hash, List<Klass> klasses) {
+			super();
+			this.hash = hash;
+			this.klasses = klasses;
+		}
+	}
+
 	private List<Klass> scanKlasses(File dir) throws IOException {
+		List<File> files = new ArrayList<>();
+		scanDir(dir, files);
+		Map<String, Scan> cache = loadCache();
+		// files are scanned in parallel, but collected in their sorted order
+		List<Scan> scans;
+		try {
+			scans = files.parallelStream().map(file -> scanFileCached(file, cache)).collect(Collectors.toList());
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		Map<String, Scan> newCache = new HashMap<>();
 		List<Klass> klasses = new ArrayList<>();
-		scanDir(dir, klasses);
+		for (int i = 0; i < files.size(); i++) {
+			newCache.put(files.get(i).getPath(), scans.get(i));
+			klasses.addAll(scans.get(i).klasses);
+		}
+		saveCache(newCache);
 		return klasses;
 	}
 
-	private void scanDir(File dir, List<Klass> klasses) throws IOException {
-		for (File fileOrDir : dir.listFiles()) {
+	private void scanDir(File dir, List<File> files) {
+		File[] filesOrDirs = dir.listFiles();
+		Arrays.sort(filesOrDirs);
+		for (File fileOrDir : filesOrDirs) {
 			if (fileOrDir.isDirectory()) {
-				scanDir(fileOrDir, klasses);
+				scanDir(fileOrDir, files);
 			} else if (fileOrDir.getName().endsWith(".java")) {
-				scanFile(fileOrDir, klasses);
+				files.add(fileOrDir);
 			}
 		}
 	}
 
-	private void scanFile(File file, List<Klass> klasses) throws IOException {
+	private Scan scanFileCached(File file, Map<String, Scan> cache) {
+		try {
+			byte[] bytes = Files.readAllBytes(file.toPath());
+			String hash = sha256(bytes);
+			Scan cached = cache.get(file.getPath());
+			if (cached != null && cached.hash.equals(hash)) {
+				log("cached " + file);
+				return cached;
+			}
+			List<Klass> klasses = new ArrayList<>();
+			scanFile(file, new String(bytes, Charset.defaultCharset()), klasses);
+			return new Scan(hash, klasses);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static String sha256(byte[] bytes) {
+		try {
+			StringBuilder sb = new StringBuilder(64);
+			for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes)) {
+				sb.append(String.format("%02x", b));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// The cache header is the hash of this generator's class file, so a
+	// changed scanner does not reuse metadata parsed by an older one.
+	private static String generatorHash() {
+		try (InputStream in = SqlGen.class.getResourceAsStream("SqlGen.class")) {
+			return in == null ? null : sha256(in.readAllBytes());
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<String, Scan> loadCache() {
+		File file = new File(CACHE_FILE);
+		String generator = generatorHash();
+		if (CACHE_FILE.isEmpty() || !file.isFile() || generator == null) {
+			return new HashMap<>();
+		}
+		try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(file))) {
+			if (!generator.equals(in.readUTF())) {
+				log("ignore cache " + file + ": written by another generator version");
+				return new HashMap<>();
+			}
+			return (Map<String, Scan>) in.readObject();
+		} catch (IOException | ClassNotFoundException | ClassCastException e) {
+			log("ignore cache " + file + ": " + e);
+			return new HashMap<>();
+		}
+	}
+
+	private void saveCache(Map<String, Scan> cache) throws IOException {
+		String generator = generatorHash();
+		if (CACHE_FILE.isEmpty() || generator == null) {
+			return;
+		}
+		try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(CACHE_FILE))) {
+			out.writeUTF(generator);
+			out.writeObject(cache);
+		}
+	}
+
+	private void scanFile(File file, String text, List<Klass> klasses) throws IOException {
 		log("scan " + file);
 		Klass klass = null;
 		boolean inFieldsBlock = false;
-		try (LineNumberReader r = new LineNumberReader(new InputStreamReader(new FileInputStream(file)))) {
+		try (LineNumberReader r = new LineNumberReader(new StringReader(text))) {
 			String line;
 			while ((line = r.readLine()) != null) {
 				line = line.trim();
@@ -132,6 +270,33 @@ public class SqlGen {
 						String table = line.substring(i + SQL_TABLE_MARKER.length() + 1).trim();
 						log("  table " + table);
 						klass.table = table;
+					} else if (line.contains(SQL_ORDER_MARKER)) {
+						List<String> keys = markerList(line, SQL_ORDER_MARKER);
+						if (!keys.contains("id")) {
+							keys.add("id"); // keyset paging needs a unique last key
+						}
+						log("  order " + keys);
+						klass.orders.add(keys);
+					} else if (line.contains(SQL_SORT_MARKER)) {
+						List<String> keys = markerList(line, SQL_SORT_MARKER);
+						if (!keys.contains("id")) {
+							keys.add("id"); // a stable order for equal keys
+						}
+						log("  sort " + keys);
+						klass.sort = keys;
+					} else if (line.contains(SQL_INDEX_MARKER)) {
+						List<String> keys = markerList(line, SQL_INDEX_MARKER);
+						log("  index " + keys);
+						klass.indexes.add(keys);
+					} else if (line.contains(SQL_UNIQUE_MARKER)) {
+						List<String> keys = markerList(line, SQL_UNIQUE_MARKER);
+						log("  unique " + keys);
+						klass.uniques.add(keys);
+					} else if (line.contains(SQL_COUNT_MARKER)) {
+						int i = line.indexOf(SQL_COUNT_MARKER);
+						String name = firstWord(line.substring(i + SQL_COUNT_MARKER.length()));
+						log("  count " + name);
+						klass.counts.add(name);
 					} else if (line.contains(SQL_NO_WRITE_MARKER)) {
 						log("  no write");
 						klass.write = false;
@@ -151,11 +316,35 @@ public class SqlGen {
 							line = removePrefix(line, "final");
 							int i = line.indexOf(';');
 							if (i > 0) {
+								String comment = line.substring(i + 1);
 								line = line.substring(0, i).trim();
 								String[] toks = line.split(" ");
 								if (toks.length == 2) {
 									log("    " + toks[0] + " " + toks[1]);
 									Field field = new Field(toks[0], toks[1]);
+									int k = comment.indexOf(SQL_REF_MARKER);
+									if (k >= 0) {
+										field.ref = firstWord(comment.substring(k + SQL_REF_MARKER.length()));
+										log("      ref " + field.ref);
+									}
+									k = comment.indexOf(SQL_ENUM_MARKER);
+									if (k >= 0) {
+										field.enumMode = firstWord(comment.substring(k + SQL_ENUM_MARKER.length()));
+										if (!field.enumMode.equals("ordinal") && !field.enumMode.equals("code")) {
+											throw new IllegalStateException(klass.name + "." + field.name + ": unknown " + SQL_ENUM_MARKER + " " + field.enumMode);
+										}
+										log("      enum " + field.enumMode);
+									}
+									k = comment.indexOf(SQL_SIZE_MARKER);
+									if (k >= 0) {
+										String size = firstWord(comment.substring(k + SQL_SIZE_MARKER.length()));
+										try {
+											field.size = Integer.parseInt(size);
+										} catch (NumberFormatException e) {
+											throw new IllegalStateException(klass.name + "." + field.name + ": bad " + SQL_SIZE_MARKER + " " + size);
+										}
+										log("      size " + field.size);
+									}
 									klass.fields.add(field);
 								}
 							}
@@ -166,6 +355,24 @@ public class SqlGen {
 		}
 	}
 
+	private List<String> markerList(String line, String marker) {
+		int i = line.indexOf(marker);
+		List<String> keys = new ArrayList<>();
+		for (String key : line.substring(i + marker.length() + 1).split(",")) {
+			keys.add(key.trim());
+		}
+		return keys;
+	}
+
+	private String firstWord(String text) {
+		text = text.trim();
+		int n = 0;
+		while (n < text.length() && Character.isJavaIdentifierPart(text.charAt(n))) {
+			n++;
+		}
+		return text.substring(0, n);
+	}
+
 	private String removePrefix(String text, String prefix) {
 		if (text.startsWith(prefix)) {
 			return text.substring(prefix.length()).trim();
@@ -178,27 +385,75 @@ public class SqlGen {
 		for (Klass klass : klasses) {
 			generateKlass(klass, code);
 		}
+		Set<String> enums = new HashSet<>();
+		for (Klass klass : klasses) {
+			for (Field field : klass.fields) {
+				if (field.enumMode != null && enums.add(field.javaType + " " + field.enumMode)) {
+					generateEnum(field.javaType, field.enumMode, code);
+				}
+				if (field.ref != null) {
+					Klass parent = findKlass(klasses, field.ref);
+					if (parent == null) {
+						throw new IllegalStateException(klass.name + "." + field.name + ": " + SQL_REF_MARKER + " " + field.ref + " is not a " + SQL_CLASS_MARKER);
+					}
+					generateRef(klass, field, parent, code);
+				}
+			}
+		}
+		generateSchema(klasses, code);
 		return code.toString();
 	}
 
+	private Klass findKlass(List<Klass> klasses, String name) {
+		for (Klass klass : klasses) {
+			if (klass.name.equals(name)) {
+				return klass;
+			}
+		}
+		return null;
+	}
+
 	private void generateKlass(Klass klass, StringBuilder code) {
 		code.append("    // class " + klass.name).append("\n");
 		code.append("").append("\n");
 		String var = uncap(klass.name);
-		// _cols
+		String konst = constant(klass.name);
+		// sql constants
 		{
-			String nakedCols = "id";
-			String aliasCols = "alias + \".id\"";
+			String placers = "?";
+			StringJoiner sets = new StringJoiner(",");
 			for (Field field : klass.fields) {
-				nakedCols += "," + field.name;
-				aliasCols += " + \",\" + alias + \"." + field.name + "\"";
+				placers += ",?";
+				sets.add(field.name + "=?");
+			}
+			code.append("    private static final String " + konst + "_TABLE = \"" + klass.table + "\";").append("\n");
+			code.append("    private static final String " + konst + "_SELECT = \"SELECT " + cols(klass, klass.table) + " FROM " + klass.table + " ORDER BY " + sortBy(klass) + "\";").append("\n");
+			code.append("    private static final String[] " + konst + "_SELECT_BY_IDS = inLists(\"SELECT " + cols(klass, klass.table) + " FROM " + klass.table + " WHERE " + klass.table + ".id IN \", \"\");").append("\n");
+			if (klass.insert) {
+				code.append("    private static final String " + konst + "_INSERT = \"INSERT INTO " + klass.table + "(" + cols(klass, "") + ") VALUES(" + placers + ")\";").append("\n");
+			}
+			if (klass.update) {
+				code.append("    private static final String " + konst + "_UPDATE = \"UPDATE " + klass.table + " SET " + sets + " WHERE id=?\";").append("\n");
+			}
+			if (klass.insert && klass.update) {
+				StringJoiner merges = new StringJoiner(",");
+				StringJoiner values = new StringJoiner(",");
+				values.add("v.id");
+				for (Field field : klass.fields) {
+					merges.add(field.name + "=v." + field.name);
+					values.add("v." + field.name);
+				}
+				code.append("    private static final String " + konst + "_UPSERT_ROW = \"(" + placers + ")\";").append("\n");
+				code.append("    private static final String " + konst + "_UPSERT_TAIL = \") AS v(" + cols(klass, "") + ") ON " + klass.table + ".id=v.id"
+						+ " WHEN MATCHED THEN UPDATE SET " + merges
+						+ " WHEN NOT MATCHED THEN INSERT (" + cols(klass, "") + ") VALUES (" + values + ")\";").append("\n");
+			}
+			if (klass.write) {
+				if (klass.fields.size() > 31) {
+					throw new IllegalStateException(klass.name + ": more than 31 " + SQL_FIELDS_MARKER + " do not fit a dirty mask");
+				}
+				code.append("    private static final int " + konst + "_ALL_FIELDS = " + ((1 << klass.fields.size()) - 1) + ";").append("\n");
 			}
-			code.append("    private String _" + var + "Cols(String alias) {").append("\n");
-			code.append("        if (alias == null || alias.isEmpty()) {").append("\n");
-			code.append("            return \"" + nakedCols + "\";").append("\n");
-			code.append("        }").append("\n");
-			code.append("        return " + aliasCols + ";").append("\n");
-			code.append("    }").append("\n");
 			code.append("\n");
 		}
 		// _read
@@ -221,76 +476,608 @@ public class SqlGen {
 					code.append("        Instant " + field.name + " = toInstant(rst.getTimestamp(si.next()));").append("\n");
 					break;
 				default:
-					code.append("        " + field.javaType + " " + field.name + " = to" + field.javaType + "(rst.getString(si.next()));").append("\n");
+					if ("ordinal".equals(field.enumMode)) {
+						code.append("        " + field.javaType + " " + field.name + " = " + uncap(field.javaType) + "OfOrdinal(\"" + klass.table + "." + field.name + "\", rst.getShort(si.next()), rst.wasNull());").append("\n");
+					} else if ("code".equals(field.enumMode)) {
+						code.append("        " + field.javaType + " " + field.name + " = " + uncap(field.javaType) + "OfCode(\"" + klass.table + "." + field.name + "\", rst.getString(si.next()));").append("\n");
+					} else {
+						code.append("        " + field.javaType + " " + field.name + " = to" + field.javaType + "(rst.getString(si.next()));").append("\n");
+					}
 					break;
 				}
 				args += "," + field.name;
 			}
-			code.append("        return new " + klass.name + "(id" + args + ");").append("\n");
+			if (klass.update) {
+				code.append("        return _snapshot" + klass.name + "(new " + klass.name + "(id" + args + "));").append("\n");
+			} else {
+				code.append("        return new " + klass.name + "(id" + args + ");").append("\n");
+			}
+			code.append("    }").append("\n");
+			code.append("\n");
+		}
+		// _findByIds
+		{
+			code.append("    private SqlList<" + klass.name + "> _find" + klass.name + "sByIds(Connection con, Collection<String> ids) throws SQLException {").append("\n");
+			code.append("        SqlList<" + klass.name + "> found = new SqlList<>(ids.size());").append("\n");
+			code.append("        queryIn(con, " + konst + "_SELECT_BY_IDS, ids, rst -> {").append("\n");
+			code.append("            found.add(_read" + klass.name + "(rst, new SqlIndex()));").append("\n");
+			code.append("        });").append("\n");
+			code.append("        SqlList<" + klass.name + "> " + var + "s = new SqlList<>(found.size());").append("\n");
+			code.append("        for (String id : ids) {").append("\n");
+			code.append("            " + var + "s.add(found.find(id));").append("\n");
+			code.append("        }").append("\n");
+			code.append("        return " + var + "s;").append("\n");
+			code.append("    }").append("\n");
+			code.append("\n");
+			code.append("    @Override").append("\n");
+			code.append("    public " + klass.name + " find" + klass.name + "ById(String id) {").append("\n");
+			code.append("        " + klass.name + "[] " + var + " = new " + klass.name + "[1];").append("\n");
+			code.append("        readTx(\"find" + klass.name + "ById\", con -> {").append("\n");
+			code.append("            " + var + "[0] = _find" + klass.name + "sByIds(con, Collections.singletonList(id)).firstOrNull();").append("\n");
+			code.append("        });").append("\n");
+			code.append("        return " + var + "[0];").append("\n");
+			code.append("    }").append("\n");
+			code.append("\n");
+			code.append("    @Override").append("\n");
+			code.append("    public List<" + klass.name + "> find" + klass.name + "sByIds(Collection<String> ids) {").append("\n");
+			code.append("        List<" + klass.name + "> " + var + "s = new ArrayList<>(ids.size());").append("\n");
+			code.append("        readTx(\"find" + klass.name + "sByIds\", con -> {").append("\n");
+			code.append("            " + var + "s.addAll(_find" + klass.name + "sByIds(con, ids).list());").append("\n");
+			code.append("        });").append("\n");
+			code.append("        return " + var + "s;").append("\n");
 			code.append("    }").append("\n");
 			code.append("\n");
 		}
 		// _write
 		if (klass.write) {
-			code.append("    private void _write" + klass.name + "(PreparedStatement pst, " + klass.name + " " + var + ", SqlIndex si) throws SQLException {").append("\n");
+			code.append("    private void _write" + klass.name + "(PreparedStatement pst, " + klass.name + " " + var + ", SqlIndex si, int fields) throws SQLException {").append("\n");
+			int bit = 1;
 			for (Field field : klass.fields) {
-				String getter = "get" + cap(field.name);
-				String iser = "is" + cap(field.name);
-				switch (field.javaType) {
-				case "int":
-					code.append("        pst.setInt(si.next(), " + var + "." + getter + "());").append("\n");
-					break;
-				case "boolean":
-					code.append("        pst.setBoolean(si.next(), " + var + "." + iser + "());").append("\n");
-					break;
-				case "String":
-					code.append("        pst.setString(si.next(), " + var + "." + getter + "());").append("\n");
-					break;
-				case "Instant":
-					code.append("        pst.setTimestamp(si.next(), toTimestamp(" + var + "." + getter + "()));").append("\n");
-					break;
-				default:
-					code.append("        pst.setString(si.next(), toVarchar(" + var + "." + getter + "()));").append("\n");
-					break;
-				}
+				code.append("        if ((fields & " + bit + ") != 0) {").append("\n");
+				code.append("            " + setParam(field.javaType, field.enumMode, var + "." + getter(field) + "()")).append("\n");
+				code.append("        }").append("\n");
+				bit <<= 1;
 			}
 			code.append("    }").append("\n");
 			code.append("\n");
 		}
-		// _insert
-		if (klass.insert) {
-			String cols = "id";
-			String placers = "?";
+		// _snapshot, _dirty
+		if (klass.update) {
+			StringJoiner values = new StringJoiner(", ");
 			for (Field field : klass.fields) {
-				cols += "," + field.name;
-				placers += ",?";
+				values.add(var + "." + getter(field) + "()");
+			}
+			code.append("    private " + klass.name + " _snapshot" + klass.name + "(" + klass.name + " " + var + ") {").append("\n");
+			code.append("        " + var + ".setSnapshot(new Object[] { " + values + " });").append("\n");
+			code.append("        return " + var + ";").append("\n");
+			code.append("    }").append("\n");
+			code.append("\n");
+			code.append("    private int _dirty" + klass.name + "(" + klass.name + " " + var + ") {").append("\n");
+			code.append("        Object[] snapshot = " + var + ".getSnapshot();").append("\n");
+			code.append("        if (snapshot == null) {").append("\n");
+			code.append("            return " + konst + "_ALL_FIELDS;").append("\n");
+			code.append("        }").append("\n");
+			code.append("        int fields = 0;").append("\n");
+			int bit = 1;
+			for (int i = 0; i < klass.fields.size(); i++) {
+				code.append("        if (!Objects.equals(snapshot[" + i + "], " + var + "." + getter(klass.fields.get(i)) + "())) {").append("\n");
+				code.append("            fields |= " + bit + ";").append("\n");
+				code.append("        }").append("\n");
+				bit <<= 1;
 			}
+			code.append("        return fields;").append("\n");
+			code.append("    }").append("\n");
+			code.append("\n");
+			code.append("    private final Map<Integer, String> _" + var + "UpdateByFields = new ConcurrentHashMap<>();").append("\n");
+			code.append("\n");
+			code.append("    private String _" + var + "Update(int fields) {").append("\n");
+			code.append("        if (fields == " + konst + "_ALL_FIELDS) {").append("\n");
+			code.append("            return " + konst + "_UPDATE;").append("\n");
+			code.append("        }").append("\n");
+			code.append("        return _" + var + "UpdateByFields.computeIfAbsent(fields, f -> {").append("\n");
+			code.append("            StringJoiner sets = new StringJoiner(\",\");").append("\n");
+			bit = 1;
+			for (Field field : klass.fields) {
+				code.append("            if ((f & " + bit + ") != 0) {").append("\n");
+				code.append("                sets.add(\"" + field.name + "=?\");").append("\n");
+				code.append("            }").append("\n");
+				bit <<= 1;
+			}
+			code.append("            return \"UPDATE " + klass.table + " SET \" + sets + \" WHERE id=?\";").append("\n");
+			code.append("        });").append("\n");
+			code.append("    }").append("\n");
+			code.append("\n");
+		}
+		// _insert
+		if (klass.insert) {
 			code.append("    private void _insert" + klass.name + "(Connection con, " + klass.name + " " + var + ") throws SQLException {").append("\n");
-			code.append("        String sql = \"INSERT INTO " + klass.table + "(" + cols + ") VALUES(" + placers + ")\";").append("\n");
-			code.append("        update(con, sql, pst -> {").append("\n");
+			code.append("        update(con, " + konst + "_INSERT, pst -> {").append("\n");
+			code.append("            SqlIndex si = new SqlIndex();").append("\n");
+			code.append("            pst.setString(si.next(), " + var + ".getId());").append("\n");
+			code.append("            _write" + klass.name + "(pst, " + var + ", si, " + konst + "_ALL_FIELDS);").append("\n");
+			code.append("        });").append("\n");
+			code.append("        changed(con, " + konst + "_TABLE);").append("\n");
+			code.append("    }").append("\n");
+			code.append("\n");
+			code.append("    private void _insert" + klass.name + "Batch(Connection con, List<" + klass.name + "> " + var + "s) throws SQLException {").append("\n");
+			code.append("        batch(con, " + konst + "_INSERT, " + var + "s, (pst, " + var + ") -> {").append("\n");
 			code.append("            SqlIndex si = new SqlIndex();").append("\n");
 			code.append("            pst.setString(si.next(), " + var + ".getId());").append("\n");
-			code.append("            _write" + klass.name + "(pst, " + var + ", si);").append("\n");
+			code.append("            _write" + klass.name + "(pst, " + var + ", si, " + konst + "_ALL_FIELDS);").append("\n");
 			code.append("        });").append("\n");
+			code.append("        if (!" + var + "s.isEmpty()) {").append("\n");
+			code.append("            changed(con, " + konst + "_TABLE);").append("\n");
+			code.append("        }").append("\n");
 			code.append("    }").append("\n");
 			code.append("\n");
 		}
 		// _update
 		if (klass.update) {
-			StringJoiner cols = new StringJoiner(",");
-			for (Field field : klass.fields) {
-				cols.add(field.name + "=?");
-			}
 			code.append("    private void _update" + klass.name + "(Connection con, " + klass.name + " " + var + ") throws SQLException {").append("\n");
-			code.append("        String sql = \"UPDATE " + klass.table + " SET " + cols + " WHERE id=?\";").append("\n");
-			code.append("        update(con, sql, pst -> {").append("\n");
+			code.append("        int fields = _dirty" + klass.name + "(" + var + ");").append("\n");
+			code.append("        if (fields == 0) {").append("\n");
+			code.append("            return;").append("\n");
+			code.append("        }").append("\n");
+			code.append("        update(con, _" + var + "Update(fields), pst -> {").append("\n");
 			code.append("            SqlIndex si = new SqlIndex();").append("\n");
-			code.append("            _write" + klass.name + "(pst, " + var + ", si);").append("\n");
+			code.append("            _write" + klass.name + "(pst, " + var + ", si, fields);").append("\n");
+			code.append("            pst.setString(si.next(), " + var + ".getId());").append("\n");
+			code.append("        });").append("\n");
+			code.append("        changed(con, " + konst + "_TABLE);").append("\n");
+			code.append("    }").append("\n");
+			code.append("\n");
+			code.append("    private void _update" + klass.name + "Batch(Connection con, List<" + klass.name + "> " + var + "s) throws SQLException {").append("\n");
+			code.append("        Map<Integer, List<" + klass.name + ">> byFields = new HashMap<>();").append("\n");
+			code.append("        for (" + klass.name + " " + var + " : " + var + "s) {").append("\n");
+			code.append("            int fields = _dirty" + klass.name + "(" + var + ");").append("\n");
+			code.append("            if (fields != 0) {").append("\n");
+			code.append("                byFields.computeIfAbsent(fields, f -> new ArrayList<>()).add(" + var + ");").append("\n");
+			code.append("            }").append("\n");
+			code.append("        }").append("\n");
+			code.append("        for (Map.Entry<Integer, List<" + klass.name + ">> e : byFields.entrySet()) {").append("\n");
+			code.append("            int fields = e.getKey();").append("\n");
+			code.append("            batch(con, _" + var + "Update(fields), e.getValue(), (pst, " + var + ") -> {").append("\n");
+			code.append("                SqlIndex si = new SqlIndex();").append("\n");
+			code.append("                _write" + klass.name + "(pst, " + var + ", si, fields);").append("\n");
+			code.append("                pst.setString(si.next(), " + var + ".getId());").append("\n");
+			code.append("            });").append("\n");
+			code.append("        }").append("\n");
+			code.append("        if (!byFields.isEmpty()) {").append("\n");
+			code.append("            changed(con, " + konst + "_TABLE);").append("\n");
+			code.append("        }").append("\n");
+			code.append("    }").append("\n");
+			code.append("\n");
+		}
+		// _upsert
+		if (klass.insert && klass.update) {
+			code.append("    private final Map<Integer, String> _" + var + "UpsertByRows = new ConcurrentHashMap<>();").append("\n");
+			code.append("\n");
+			code.append("    private String _" + var + "Upsert(int rows) {").append("\n");
+			code.append("        return _" + var + "UpsertByRows.computeIfAbsent(rows, n -> \"MERGE INTO " + klass.table + " USING (VALUES \" + String.join(\",\", Collections.nCopies(n, " + konst + "_UPSERT_ROW)) + " + konst + "_UPSERT_TAIL);").append("\n");
+			code.append("    }").append("\n");
+			code.append("\n");
+			code.append("    private void _upsert" + klass.name + "Batch(Connection con, List<" + klass.name + "> " + var + "s) throws SQLException {").append("\n");
+			code.append("        upsert(con, " + var + "s, this::_" + var + "Upsert, (pst, " + var + ", si) -> {").append("\n");
 			code.append("            pst.setString(si.next(), " + var + ".getId());").append("\n");
+			code.append("            _write" + klass.name + "(pst, " + var + ", si, " + konst + "_ALL_FIELDS);").append("\n");
 			code.append("        });").append("\n");
+			code.append("        if (!" + var + "s.isEmpty()) {").append("\n");
+			code.append("            changed(con, " + konst + "_TABLE);").append("\n");
+			code.append("        }").append("\n");
 			code.append("    }").append("\n");
 			code.append("\n");
 		}
+		// _findAfter
+		for (List<String> keys : klass.orders) {
+			generateOrder(klass, keys, code);
+		}
+		// count
+		for (String name : klass.counts) {
+			generateCount(klass, findField(klass, SQL_COUNT_MARKER, name), code);
+		}
+	}
+
+	// @sql-enum dimensions are counted into a long[] indexed by ordinal,
+	// String dimensions into a Counts; other types are rejected. Refs are named after the referenced class.
+	private void generateCount(Klass klass, Field field, StringBuilder code) {
+		String t = klass.table;
+		String konst = constant(klass.name) + "_COUNT_BY_" + constant(field.name);
+		String method = "count" + klass.name + "sBy" + (field.ref != null ? field.ref : cap(field.name));
+		boolean isEnum = field.enumMode != null;
+		if (!isEnum && !field.javaType.equals("String")) {
+			throw new IllegalStateException(klass.name + "." + field.name + ": " + SQL_COUNT_MARKER + " needs a String or " + SQL_ENUM_MARKER + " field, not " + field.javaType);
+		}
+		String type = isEnum ? "long[]" : "Counts";
+		code.append("    // count " + klass.name + " by " + field.name).append("\n");
+		code.append("").append("\n");
+		code.append("    private static final String " + konst + " = \"SELECT " + t + "." + field.name + ",COUNT(*) FROM " + t + " GROUP BY " + t + "." + field.name + "\";").append("\n");
+		code.append("\n");
+		code.append("    private " + type + " _" + method + "(Connection con) throws SQLException {").append("\n");
+		if (isEnum) {
+			String read;
+			if ("ordinal".equals(field.enumMode)) {
+				read = uncap(field.javaType) + "OfOrdinal(\"" + t + "." + field.name + "\", rst.getShort(1), rst.wasNull())";
+			} else {
+				read = uncap(field.javaType) + "OfCode(\"" + t + "." + field.name + "\", rst.getString(1))";
+			}
+			code.append("        long[] counts = new long[" + field.javaType + ".values().length];").append("\n");
+			code.append("        query(con, " + konst + ", rst -> {").append("\n");
+			code.append("            " + field.javaType + " " + field.name + " = " + read + ";").append("\n");
+			code.append("            if (" + field.name + " != null) {").append("\n");
+			code.append("                counts[" + field.name + ".ordinal()] = rst.getLong(2);").append("\n");
+			code.append("            }").append("\n");
+			code.append("        });").append("\n");
+		} else {
+			code.append("        Counts counts = new Counts();").append("\n");
+			code.append("        query(con, " + konst + ", rst -> {").append("\n");
+			code.append("            counts.add(rst.getString(1), rst.getLong(2));").append("\n");
+			code.append("        });").append("\n");
+		}
+		code.append("        return counts;").append("\n");
+		code.append("    }").append("\n");
+		code.append("\n");
+		code.append("    @Override").append("\n");
+		code.append("    public " + type + " " + method + "() {").append("\n");
+		code.append("        " + (isEnum ? "long[][] counts = new long[1][]" : "Counts[] counts = new Counts[1]") + ";").append("\n");
+		code.append("        readTx(\"" + method + "\", con -> {").append("\n");
+		code.append("            counts[0] = _" + method + "(con);").append("\n");
+		code.append("        });").append("\n");
+		code.append("        return counts[0];").append("\n");
+		code.append("    }").append("\n");
+		code.append("\n");
+	}
+
+	private void generateOrder(Klass klass, List<String> keys, StringBuilder code) {
+		String var = uncap(klass.name);
+		String t = klass.table;
+		String konst = constant(klass.name) + "_PAGE";
+		String params = "";
+		StringJoiner orderBy = new StringJoiner(",");
+		List<String> binds = new ArrayList<>();
+		for (String key : keys) {
+			String javaType = key.equals("id") ? "String" : findField(klass, SQL_ORDER_MARKER, key).javaType;
+			konst += "_" + constant(key);
+			params += ", " + javaType + " " + key;
+			orderBy.add(t + "." + key);
+		}
+		// k1>=? AND (k1>? OR (k2>=? AND (k2>? OR k3>?))) instead of the equivalent
+		// k1>? OR (k1=? AND k2>?) OR ..., so every page starts with a range
+		// bound on the leading key and HSQLDB does not scan the rest of the table
+		String last = keys.get(keys.size() - 1);
+		String after = t + "." + last + ">?";
+		for (int i = keys.size() - 2; i >= 0; i--) {
+			String key = t + "." + keys.get(i);
+			after = key + ">=? AND (" + key + ">? OR " + (i == keys.size() - 2 ? after : "(" + after + ")") + ")";
+		}
+		for (String key : keys) {
+			binds.add(key);
+			if (!key.equals(last)) {
+				binds.add(key);
+			}
+		}
+		String first = keys.get(0);
+		code.append("    private static final String " + konst + "_FIRST = \"SELECT " + cols(klass, t) + " FROM " + t + " ORDER BY " + orderBy + " LIMIT ?\";").append("\n");
+		code.append("    private static final String " + konst + "_AFTER = \"SELECT " + cols(klass, t) + " FROM " + t + " WHERE " + after + " ORDER BY " + orderBy + " LIMIT ?\";").append("\n");
+		code.append("\n");
+		code.append("    private List<" + klass.name + "> _find" + klass.name + "sAfter(Connection con" + params + ", int limit) throws SQLException {").append("\n");
+		code.append("        if (limit < 1) {").append("\n");
+		code.append("            throw new IllegalArgumentException(\"limit must be >= 1 but was \" + limit);").append("\n");
+		code.append("        }").append("\n");
+		code.append("        List<" + klass.name + "> " + var + "s = new ArrayList<>(Math.min(limit, 256));").append("\n");
+		code.append("        Reader r = rst -> {").append("\n");
+		code.append("            " + var + "s.add(_read" + klass.name + "(rst, new SqlIndex()));").append("\n");
+		code.append("        };").append("\n");
+		code.append("        if (" + first + " == null) {").append("\n");
+		code.append("            query(con, " + konst + "_FIRST, pst -> {").append("\n");
+		code.append("                pst.setInt(1, limit);").append("\n");
+		code.append("            }, r);").append("\n");
+		code.append("        } else {").append("\n");
+		code.append("            query(con, " + konst + "_AFTER, pst -> {").append("\n");
+		code.append("                SqlIndex si = new SqlIndex();").append("\n");
+		for (String bind : binds) {
+			if (bind.equals("id")) {
+				code.append("                " + setParam("String", null, bind)).append("\n");
+			} else {
+				Field field = findField(klass, SQL_ORDER_MARKER, bind);
+				code.append("                " + setParam(field.javaType, field.enumMode, bind)).append("\n");
+			}
+		}
+		code.append("                pst.setInt(si.next(), limit);").append("\n");
+		code.append("            }, r);").append("\n");
+		code.append("        }").append("\n");
+		code.append("        return " + var + "s;").append("\n");
+		code.append("    }").append("\n");
+		code.append("\n");
+	}
+
+	private String createTable(Klass klass, List<Klass> klasses) {
+		StringJoiner cols = new StringJoiner(", ");
+		cols.add("id " + ID_COLUMN_TYPE + " PRIMARY KEY NOT NULL");
+		for (Field field : klass.fields) {
+			String col = field.name + " " + columnType(field) + " NOT NULL";
+			if (field.ref != null) {
+				col += " REFERENCES " + findKlass(klasses, field.ref).table + "(id)";
+			}
+			cols.add(col);
+		}
+		return "CREATE TABLE " + klass.table + " (" + cols + ")";
+	}
+
+	private String createIndex(Klass klass, String what, String marker, List<String> keys) {
+		for (String key : keys) {
+			if (!key.equals("id")) {
+				findField(klass, marker, key);
+			}
+		}
+		return "CREATE " + what + " " + klass.table + "_" + String.join("_", keys) + " ON " + klass.table + "(" + String.join(",", keys) + ")";
+	}
+
+	private String columnType(Field field) {
+		if (field.ref != null) {
+			return ID_COLUMN_TYPE;
+		}
+		switch (field.javaType) {
+		case "int":
+			return "INTEGER";
+		case "boolean":
+			return "BOOLEAN";
+		case "Instant":
+			return "TIMESTAMP";
+		default:
+			if ("ordinal".equals(field.enumMode)) {
+				return "SMALLINT";
+			} else if ("code".equals(field.enumMode)) {
+				return "CHAR(1)";
+			}
+			return "VARCHAR(" + (field.size > 0 ? field.size : DEFAULT_VARCHAR_SIZE) + ")";
+		}
+	}
+
+	// tables are created after the tables they reference
+	private void generateSchema(List<Klass> klasses, StringBuilder code) {
+		List<Klass> created = new ArrayList<>();
+		while (created.size() < klasses.size()) {
+			int n = created.size();
+			for (Klass klass : klasses) {
+				if (!created.contains(klass) && refsCreated(klass, created)) {
+					created.add(klass);
+				}
+			}
+			if (created.size() == n) {
+				throw new IllegalStateException("cyclic " + SQL_REF_MARKER + " between tables, cannot order the schema");
+			}
+		}
+		code.append("    // schema").append("\n");
+		code.append("").append("\n");
+		for (Klass klass : created) {
+			code.append("    private static final String[] " + constant(klass.name) + "_DDL = {").append("\n");
+			code.append("        \"" + createTable(klass, klasses) + "\",").append("\n");
+			for (List<String> keys : klass.uniques) {
+				code.append("        \"" + createIndex(klass, "UNIQUE INDEX", SQL_UNIQUE_MARKER, keys) + "\",").append("\n");
+			}
+			for (List<String> keys : klass.indexes) {
+				code.append("        \"" + createIndex(klass, "INDEX", SQL_INDEX_MARKER, keys) + "\",").append("\n");
+			}
+			code.append("    };").append("\n");
+		}
+		code.append("\n");
+		code.append("    private void _createSchema(Connection con) throws SQLException {").append("\n");
+		for (Klass klass : created) {
+			code.append("        for (String ddl : " + constant(klass.name) + "_DDL) {").append("\n");
+			code.append("            execSql(con, ddl);").append("\n");
+			code.append("        }").append("\n");
+		}
+		code.append("    }").append("\n");
+		code.append("").append("\n");
+	}
+
+	private boolean refsCreated(Klass klass, List<Klass> created) {
+		for (Field field : klass.fields) {
+			if (field.ref != null && !field.ref.equals(klass.name) && findKlass(created, field.ref) == null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void generateEnum(String type, String mode, StringBuilder code) {
+		code.append("    // enum " + type + " as " + mode).append("\n");
+		code.append("").append("\n");
+		String konst = constant(type);
+		if (mode.equals("ordinal")) {
+			code.append("    private static final " + type + "[] " + konst + "_BY_ORDINAL = " + type + ".values();").append("\n");
+			code.append("\n");
+			code.append("    private " + type + " " + uncap(type) + "OfOrdinal(String column, short ordinal, boolean isNull) {").append("\n");
+			code.append("        return isNull ? null : SqlEnums.ofOrdinal(" + konst + "_BY_ORDINAL, column, ordinal);").append("\n");
+			code.append("    }").append("\n");
+			code.append("\n");
+			code.append("    private void set" + type + "Ordinal(PreparedStatement pst, int index, " + type + " value) throws SQLException {").append("\n");
+			code.append("        if (value == null) {").append("\n");
+			code.append("            pst.setNull(index, Types.SMALLINT);").append("\n");
+			code.append("        } else {").append("\n");
+			code.append("            pst.setShort(index, (short) value.ordinal());").append("\n");
+			code.append("        }").append("\n");
+			code.append("    }").append("\n");
+			code.append("\n");
+		} else {
+			// SqlEnums holds the code table and checks, shared with SqlMapper
+			code.append("    private static final " + type + "[] " + konst + "_BY_CODE = SqlEnums.byCode(" + type + ".class);").append("\n");
+			code.append("    private static final String[] " + konst + "_CODES = SqlEnums.codes(" + type + ".class);").append("\n");
+			code.append("\n");
+			code.append("    private " + type + " " + uncap(type) + "OfCode(String column, String code) {").append("\n");
+			code.append("        return SqlEnums.ofCode(" + konst + "_BY_CODE, column, code);").append("\n");
+			code.append("    }").append("\n");
+			code.append("\n");
+			code.append("    private void set" + type + "Code(PreparedStatement pst, int index, " + type + " value) throws SQLException {").append("\n");
+			code.append("        pst.setString(index, value == null ? null : " + konst + "_CODES[value.ordinal()]);").append("\n");
+			code.append("    }").append("\n");
+			code.append("\n");
+		}
+	}
+
+	private Field findField(Klass klass, String marker, String name) {
+		for (Field field : klass.fields) {
+			if (field.name.equals(name)) {
+				return field;
+			}
+		}
+		throw new IllegalStateException(klass.name + ": " + marker + " key " + name + " is not in " + SQL_FIELDS_MARKER);
+	}
+
+	private String getter(Field field) {
+		return (field.javaType.equals("boolean") ? "is" : "get") + cap(field.name);
+	}
+
+	private String setParam(String javaType, String enumMode, String expr) {
+		switch (javaType) {
+		case "int":
+			return "pst.setInt(si.next(), " + expr + ");";
+		case "boolean":
+			return "pst.setBoolean(si.next(), " + expr + ");";
+		case "String":
+			return "pst.setString(si.next(), " + expr + ");";
+		case "Instant":
+			return "pst.setTimestamp(si.next(), toTimestamp(" + expr + "));";
+		default:
+			if ("ordinal".equals(enumMode)) {
+				return "set" + javaType + "Ordinal(pst, si.next(), " + expr + ");";
+			} else if ("code".equals(enumMode)) {
+				return "set" + javaType + "Code(pst, si.next(), " + expr + ");";
+			}
+			return "pst.setString(si.next(), toVarchar(" + expr + "));";
+		}
+	}
+
+	private void generateRef(Klass child, Field field, Klass parent, StringBuilder code) {
+		code.append("    // ref " + child.name + "." + field.name + " -> " + parent.name).append("\n");
+		code.append("").append("\n");
+		String childVar = uncap(child.name);
+		String parentVar = uncap(parent.name);
+		String childProp = field.name.endsWith("Id") ? field.name.substring(0, field.name.length() - 2) : parentVar;
+		String parentProp = childVar + "s";
+		String ct = child.table;
+		String pt = parent.table;
+		String childKonst = constant(child.name);
+		String parentKonst = constant(parent.name);
+		String byRefKonst = childKonst + "_SELECT_BY_" + constant(field.name) + "S";
+		String parentJoinKonst = parentKonst + "_WITH_" + constant(parentProp) + "_JOIN";
+		String childJoinKonst = childKonst + "_WITH_" + constant(childProp) + "_JOIN";
+		// sql constants
+		{
+			code.append("    private static final String[] " + byRefKonst + " = inLists(\"SELECT " + cols(child, ct) + " FROM " + ct + " WHERE " + ct + "." + field.name + " IN \", \" ORDER BY " + sortBy(child) + "\");").append("\n");
+			code.append("    private static final String " + parentJoinKonst + " = \"SELECT " + cols(parent, pt) + "," + cols(child, ct) + " FROM " + pt + " LEFT JOIN " + ct + " ON " + ct + "." + field.name + "=" + pt + ".id ORDER BY " + sortBy(parent) + "," + sortBy(child) + "\";").append("\n");
+			code.append("    private static final String " + childJoinKonst + " = \"SELECT " + cols(child, ct) + "," + cols(parent, pt) + " FROM " + ct + " LEFT JOIN " + pt + " ON " + pt + ".id=" + ct + "." + field.name + " ORDER BY " + sortBy(child) + "\";").append("\n");
+			code.append("\n");
+		}
+		// _findChildrenByRef
+		String byRef = "_find" + child.name + "sBy" + cap(field.name) + "s";
+		{
+			code.append("    private List<" + child.name + "> " + byRef + "(Connection con, Collection<String> " + field.name + "s) throws SQLException {").append("\n");
+			code.append("        SqlList<" + child.name + "> " + childVar + "s = new SqlList<>();").append("\n");
+			code.append("        queryIn(con, " + byRefKonst + ", " + field.name + "s, rst -> {").append("\n");
+			code.append("            " + childVar + "s.add(_read" + child.name + "(rst, new SqlIndex()));").append("\n");
+			code.append("        });").append("\n");
+			code.append("        return " + childVar + "s.list();").append("\n");
+			code.append("    }").append("\n");
+			code.append("\n");
+		}
+		// _findParentsWithChildren
+		{
+			code.append("    private List<" + parent.name + "> _find" + parent.name + "sWith" + cap(parentProp) + "(Connection con, Fetch fetch) throws SQLException {").append("\n");
+			code.append("        SqlList<" + parent.name + "> " + parentVar + "s = new SqlList<>();").append("\n");
+			code.append("        List<" + child.name + "> " + childVar + "s;").append("\n");
+			code.append("        if (fetch == Fetch.Join) {").append("\n");
+			code.append("            SqlList<" + child.name + "> joined = new SqlList<>();").append("\n");
+			code.append("            query(con, " + parentJoinKonst + ", rst -> {").append("\n");
+			code.append("                SqlIndex si = new SqlIndex();").append("\n");
+			code.append("                " + parentVar + "s.add(_read" + parent.name + "(rst, si));").append("\n");
+			code.append("                joined.add(_read" + child.name + "(rst, si));").append("\n");
+			code.append("            });").append("\n");
+			code.append("            " + childVar + "s = joined.list();").append("\n");
+			code.append("        } else {").append("\n");
+			code.append("            query(con, " + parentKonst + "_SELECT, rst -> {").append("\n");
+			code.append("                " + parentVar + "s.add(_read" + parent.name + "(rst, new SqlIndex()));").append("\n");
+			code.append("            });").append("\n");
+			code.append("            List<String> ids = new ArrayList<>();").append("\n");
+			code.append("            for (" + parent.name + " " + parentVar + " : " + parentVar + "s.list()) {").append("\n");
+			code.append("                ids.add(" + parentVar + ".getId());").append("\n");
+			code.append("            }").append("\n");
+			code.append("            " + childVar + "s = " + byRef + "(con, ids);").append("\n");
+			code.append("        }").append("\n");
+			code.append("        for (" + parent.name + " " + parentVar + " : " + parentVar + "s.list()) {").append("\n");
+			code.append("            " + parentVar + ".set" + cap(parentProp) + "(new ArrayList<>());").append("\n");
+			code.append("        }").append("\n");
+			code.append("        for (" + child.name + " " + childVar + " : " + childVar + "s) {").append("\n");
+			code.append("            " + parentVar + "s.need(" + childVar + ".get" + cap(field.name) + "()).get" + cap(parentProp) + "().add(" + childVar + ");").append("\n");
+			code.append("        }").append("\n");
+			code.append("        return " + parentVar + "s.list();").append("\n");
+			code.append("    }").append("\n");
+			code.append("\n");
+		}
+		// _findChildrenWithParent
+		{
+			code.append("    private List<" + child.name + "> _find" + child.name + "sWith" + cap(childProp) + "(Connection con, Fetch fetch) throws SQLException {").append("\n");
+			code.append("        SqlList<" + child.name + "> " + childVar + "s = new SqlList<>();").append("\n");
+			code.append("        SqlList<" + parent.name + "> " + parentVar + "s;").append("\n");
+			code.append("        if (fetch == Fetch.Join) {").append("\n");
+			code.append("            SqlList<" + parent.name + "> joined = new SqlList<>();").append("\n");
+			code.append("            query(con, " + childJoinKonst + ", rst -> {").append("\n");
+			code.append("                SqlIndex si = new SqlIndex();").append("\n");
+			code.append("                " + childVar + "s.add(_read" + child.name + "(rst, si));").append("\n");
+			code.append("                joined.add(_read" + parent.name + "(rst, si));").append("\n");
+			code.append("            });").append("\n");
+			code.append("            " + parentVar + "s = joined;").append("\n");
+			code.append("        } else {").append("\n");
+			code.append("            query(con, " + childKonst + "_SELECT, rst -> {").append("\n");
+			code.append("                " + childVar + "s.add(_read" + child.name + "(rst, new SqlIndex()));").append("\n");
+			code.append("            });").append("\n");
+			code.append("            Set<String> ids = new LinkedHashSet<>();").append("\n");
+			code.append("            for (" + child.name + " " + childVar + " : " + childVar + "s.list()) {").append("\n");
+			code.append("                ids.add(" + childVar + ".get" + cap(field.name) + "());").append("\n");
+			code.append("            }").append("\n");
+			code.append("            " + parentVar + "s = _find" + parent.name + "sByIds(con, ids);").append("\n");
+			code.append("        }").append("\n");
+			code.append("        for (" + child.name + " " + childVar + " : " + childVar + "s.list()) {").append("\n");
+			code.append("            " + childVar + ".set" + cap(childProp) + "(" + parentVar + "s.need(" + childVar + ".get" + cap(field.name) + "()));").append("\n");
+			code.append("        }").append("\n");
+			code.append("        return " + childVar + "s.list();").append("\n");
+			code.append("    }").append("\n");
+			code.append("\n");
+		}
+	}
+
+	// The @sql-sort keys, else the first @sql-order keys, else id.
+	private String sortBy(Klass klass) {
+		List<String> keys = klass.sort != null ? klass.sort : klass.orders.isEmpty() ? Arrays.asList("id") : klass.orders.get(0);
+		StringJoiner sortBy = new StringJoiner(",");
+		for (String key : keys) {
+			if (!key.equals("id")) {
+				findField(klass, SQL_SORT_MARKER, key);
+			}
+			sortBy.add(klass.table + "." + key);
+		}
+		return sortBy.toString();
+	}
+
+	private String cols(Klass klass, String alias) {
+		String prefix = alias.isEmpty() ? "" : alias + ".";
+		StringJoiner cols = new StringJoiner(",");
+		cols.add(prefix + "id");
+		for (Field field : klass.fields) {
+			cols.add(prefix + field.name);
+		}
+		return cols.toString();
+	}
+
+	private String constant(String name) {
+		StringBuilder sb = new StringBuilder();
+		for (char c : name.toCharArray()) {
+			if (Character.isUpperCase(c) && sb.length() > 0) {
+				sb.append('_');
+			}
+			sb.append(Character.toUpperCase(c));
+		}
+		return sb.toString();
 	}
 
 	private String cap(String s) {
@@ -302,6 +1089,10 @@ public class SqlGen {
 	}
 
 	private static void mergeInto(File file, String code) throws IOException {
+		String old = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+		// keep the line endings of the file, whatever the platform
+		String nl = old.contains("\r\n") ? "\r\n" : "\n";
+		code = code.replace("\n", nl);
 		StringBuilder textBuilder = new StringBuilder(10 * 1024);
 		try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"))) {
 			boolean pre = true;
@@ -309,19 +1100,19 @@ public class SqlGen {
 			String line;
 			while ((line = r.readLine()) != null) {
 				if (pre) {
-					textBuilder.append(line).append(System.lineSeparator());
+					textBuilder.append(line).append(nl);
 					if (line.contains(SQL_BEGIN_MARKER)) {
-						textBuilder.append(System.lineSeparator());
-						textBuilder.append(System.lineSeparator());
-						textBuilder.append(code).append(System.lineSeparator());
+						textBuilder.append(nl);
+						textBuilder.append(nl);
+						textBuilder.append(code).append(nl);
 						pre = false;
 						post = false;
 					}
 				} else if (post) {
-					textBuilder.append(line).append(System.lineSeparator());
+					textBuilder.append(line).append(nl);
 				} else {
 					if (line.contains(SQL_END_MARKER)) {
-						textBuilder.append(line).append(System.lineSeparator());
+						textBuilder.append(line).append(nl);
 						pre = false;
 						post = true;
 					}
@@ -329,7 +1120,9 @@ public class SqlGen {
 			}
 		}
 		String text = textBuilder.toString();
-		if (!text.isEmpty()) {
+		if (text.equals(old)) {
+			log("code in " + file + " is unchanged");
+		} else if (!text.isEmpty()) {
 			try (BufferedWriter w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"))) {
 				w.write(text);
 			}
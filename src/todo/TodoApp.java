@@ -56,20 +56,22 @@ public class TodoApp {
 	
 	private static void updateData(Db db) {
 		System.out.println("--- updateData");
-		// users
-		List<User> users = db.findUsers();
-		for( User user : users ) {
-			String newLogin = user.getLogin().toUpperCase();
-			user.setLogin(newLogin);
-			db.saveUser(user);
-		}
-		// tasks
-		List<Task> tasks = db.findTasks();
-		for( Task task : tasks) {
-			String newTitle = task.getTitle().toUpperCase();
-			task.setTitle(newTitle);
-			db.saveTask(task);
-		}
+		db.inTransaction(tx -> {
+			// users
+			List<User> users = tx.findUsers();
+			for( User user : users ) {
+				String newLogin = user.getLogin().toUpperCase();
+				user.setLogin(newLogin);
+			}
+			tx.saveUsers(users);
+			// tasks
+			List<Task> tasks = tx.findTasks();
+			for( Task task : tasks) {
+				String newTitle = task.getTitle().toUpperCase();
+				task.setTitle(newTitle);
+			}
+			tx.saveTasks(tasks);
+		});
 	}
 
 	private static void dumpData(Db db) {
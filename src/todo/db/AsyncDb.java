@@ -0,0 +1,49 @@
+package todo.db;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+public interface AsyncDb {
+
+	CompletableFuture<Void> saveUser(User user);
+	
+	CompletableFuture<Void> saveUsers(Collection<User> users);
+	
+	CompletableFuture<Void> upsertUsers(Collection<User> users);
+	
+	CompletableFuture<List<User>> findUsers();
+	
+	CompletableFuture<List<User>> findUsers(Fetch fetch);
+	
+	CompletableFuture<Void> forEachUser(Consumer<User> consumer);
+	
+	CompletableFuture<User> findUserById(String id);
+	
+	CompletableFuture<List<User>> findUsersByIds(Collection<String> ids);
+	
+	CompletableFuture<Void> saveTask(Task task);
+	
+	CompletableFuture<Void> saveTasks(Collection<Task> tasks);
+	
+	CompletableFuture<Void> upsertTasks(Collection<Task> tasks);
+	
+	CompletableFuture<List<Task>> findTasks();
+	
+	CompletableFuture<List<Task>> findTasks(Fetch fetch);
+	
+	CompletableFuture<List<Task>> findTasksAfter(Instant created, String id, int limit);
+	
+	CompletableFuture<Void> forEachTask(Consumer<Task> consumer);
+	
+	CompletableFuture<Task> findTaskById(String id);
+	
+	CompletableFuture<List<Task>> findTasksByIds(Collection<String> ids);
+	
+	CompletableFuture<long[]> countTasksByStatus();
+	
+	CompletableFuture<Counts> countTasksByUser();
+	
+}
@@ -0,0 +1,86 @@
+package todo.db;
+
+import java.util.Arrays;
+
+// Counts per key, as returned by the count*By* queries. Counts are kept in
+// an array parallel to a KeyIndex, in insertion order, so there are neither
+// entry objects nor boxed longs.
+public class Counts {
+
+	private static final int DEFAULT_EXPECTED_SIZE = 16;
+
+	private final KeyIndex index;
+	private long[] counts;
+
+	public Counts() {
+		this(DEFAULT_EXPECTED_SIZE);
+	}
+
+	public Counts(int expectedSize) {
+		index = new KeyIndex(expectedSize);
+		counts = new long[Math.max(expectedSize, 4)];
+	}
+
+	// Adds count to the count of key; null keys are ignored.
+	public void add(String key, long count) {
+		if (key == null) {
+			return;
+		}
+		int size = index.size();
+		int i = index.add(key);
+		if (i == size) {
+			if (size == counts.length) {
+				counts = Arrays.copyOf(counts, size + (size >> 1) + 1);
+			}
+			counts[i] = count;
+		} else {
+			counts[i] += count;
+		}
+	}
+
+	// The count of key, 0 if key was never added.
+	public long get(String key) {
+		if (key == null) {
+			return 0;
+		}
+		int i = index.indexOf(key);
+		return i < 0 ? 0 : counts[i];
+	}
+
+	public int size() {
+		return index.size();
+	}
+
+	public String key(int index) {
+		checkIndex(index);
+		return this.index.key(index);
+	}
+
+	public long count(int index) {
+		checkIndex(index);
+		return counts[index];
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size()) {
+			throw new IndexOutOfBoundsException("index " + index + ", size " + size());
+		}
+	}
+
+	public long total() {
+		long total = 0;
+		for (int i = 0; i < size(); i++) {
+			total += counts[i];
+		}
+		return total;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("{");
+		for (int i = 0; i < size(); i++) {
+			sb.append(i == 0 ? "" : ", ").append(index.key(i)).append('=').append(counts[i]);
+		}
+		return sb.append('}').toString();
+	}
+}
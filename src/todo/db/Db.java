@@ -1,15 +1,55 @@
 package todo.db;
 
+import java.time.Instant;
+import java.util.Collection;
 import java.util.List;
+import java.util.function.Consumer;
 
 public interface Db {
 
+	// Runs work in one transaction; Db calls that work makes on the calling
+	// thread join it, calls from other threads run in their own. Work runs
+	// once: if the transaction fails, it is rolled back and not retried.
+	void inTransaction(Consumer<Db> work);
+	
 	void saveUser(User user);
 	
+	void saveUsers(Collection<User> users);
+	
+	void upsertUsers(Collection<User> users);
+	
 	List<User> findUsers();
 	
+	List<User> findUsers(Fetch fetch);
+	
+	void forEachUser(Consumer<User> consumer);
+	
+	User findUserById(String id);
+	
+	List<User> findUsersByIds(Collection<String> ids);
+	
 	void saveTask(Task task);
 	
+	void saveTasks(Collection<Task> tasks);
+	
+	void upsertTasks(Collection<Task> tasks);
+	
 	List<Task> findTasks();
 	
+	List<Task> findTasks(Fetch fetch);
+	
+	List<Task> findTasksAfter(Instant created, String id, int limit);
+	
+	void forEachTask(Consumer<Task> consumer);
+	
+	Task findTaskById(String id);
+	
+	List<Task> findTasksByIds(Collection<String> ids);
+	
+	// Indexed by TaskStatus ordinal.
+	long[] countTasksByStatus();
+	
+	// Keyed by user id; users without tasks are not included.
+	Counts countTasksByUser();
+	
 }
@@ -4,6 +4,7 @@ package todo.db;
 public abstract class Entity {
 
 	private String id;
+	private Object[] snapshot = null; // column values as last read or saved, for change tracking
 
 	public Entity(String id) {
 		super();
@@ -18,4 +19,12 @@ public abstract class Entity {
 		this.id = id;
 	}
 
+	public Object[] getSnapshot() {
+		return snapshot;
+	}
+
+	public void setSnapshot(Object[] snapshot) {
+		this.snapshot = snapshot;
+	}
+
 }
@@ -0,0 +1,6 @@
+package todo.db;
+
+public enum Fetch {
+
+	Join, InList
+}
@@ -0,0 +1,89 @@
+package todo.db;
+
+import java.util.Arrays;
+
+// Maps string keys to their insertion index through an open addressing
+// table with linear probing. Counts and SqlList keep their values in arrays
+// parallel to this index, so lookups need neither entry objects nor boxing.
+public class KeyIndex {
+
+	private String[] keys; // in insertion order
+	private int size;
+	private int[] slots; // key index + 1, 0 means free
+
+	public KeyIndex(int expectedSize) {
+		expectedSize = Math.max(expectedSize, 4);
+		keys = new String[expectedSize];
+		slots = new int[slotsFor(expectedSize)];
+	}
+
+	private static int slotsFor(int size) {
+		// keep the load factor at or below 0.5
+		int n = Integer.highestOneBit(Math.max(size, 2) * 2 - 1) << 1;
+		if (n <= 0) {
+			throw new IllegalStateException("key index too large: " + size);
+		}
+		return n;
+	}
+
+	private static int hash(String key) {
+		int h = key.hashCode() * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	// Returns the index of key, appending key first if it is new; a new key
+	// gets the index equal to size() before the call.
+	public int add(String key) {
+		int slot = slotOf(key);
+		if (slots[slot] != 0) {
+			return slots[slot] - 1;
+		}
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, size + (size >> 1) + 1);
+		}
+		keys[size] = key;
+		slots[slot] = ++size;
+		if (size * 2 > slots.length) {
+			rehash(slots.length * 2);
+		}
+		return size - 1;
+	}
+
+	// Returns the index of key, -1 if key was never added.
+	public int indexOf(String key) {
+		return slots[slotOf(key)] - 1;
+	}
+
+	// returns the slot holding key, or the free slot where key belongs
+	private int slotOf(String key) {
+		int mask = slots.length - 1;
+		int slot = hash(key) & mask;
+		while (true) {
+			int index = slots[slot];
+			if (index == 0 || keys[index - 1].equals(key)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private void rehash(int capacity) {
+		slots = new int[capacity];
+		int mask = capacity - 1;
+		for (int i = 0; i < size; i++) {
+			int slot = hash(keys[i]) & mask;
+			while (slots[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			slots[slot] = i + 1;
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public String key(int index) {
+		return keys[index];
+	}
+}
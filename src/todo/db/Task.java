@@ -3,13 +3,18 @@ package todo.db;
 import java.time.Instant;
 
 //@sql-class Task
+// @sql-order created,id
+// @sql-index created,id
+// @sql-index userId,created
+// @sql-count status
+// @sql-count userId
 public class Task extends Entity {
 
 	// @sql-fields
 	private Instant created;
-	private String userId; // -> users.id, the user responsible for this task
+	private String userId; // @sql-ref User, the user responsible for this task
 	private String title;
-	private TaskStatus status;
+	private TaskStatus status; // @sql-enum ordinal
 	// @sql-fields
 	private User user = null;
 
@@ -3,6 +3,8 @@ package todo.db;
 import java.util.List;
 
 // @sql-class User
+// @sql-unique login
+// @sql-sort login
 public class User extends Entity {
 
 	// @sql-fields
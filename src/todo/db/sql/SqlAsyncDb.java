@@ -0,0 +1,204 @@
+package todo.db.sql;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import todo.db.AsyncDb;
+import todo.db.Counts;
+import todo.db.Db;
+import todo.db.Fetch;
+import todo.db.Task;
+import todo.db.User;
+
+// Runs each Db call on its own thread and completes a future with the result.
+// Uses virtual threads where the runtime has them (Java 21+), otherwise a
+// fixed pool of daemon threads. Reads and writes have separate permits, sized
+// like SqlDb's read and write pools; calls beyond that wait for a permit, so
+// callers never block on a pool connection.
+public class SqlAsyncDb implements AsyncDb, AutoCloseable {
+
+	private final Db db;
+	private final Semaphore readPermits;
+	private final Semaphore writePermits;
+	private final ExecutorService executor;
+
+	public SqlAsyncDb(SqlDb db) {
+		this(db, db.getReadPoolSize(), db.getPoolSize());
+	}
+
+	public SqlAsyncDb(Db db, int maxReads, int maxWrites) {
+		super();
+		if (maxReads < 1) {
+			throw new IllegalArgumentException("maxReads must be >= 1 but was " + maxReads);
+		}
+		if (maxWrites < 1) {
+			throw new IllegalArgumentException("maxWrites must be >= 1 but was " + maxWrites);
+		}
+		this.db = db;
+		this.readPermits = new Semaphore(maxReads);
+		this.writePermits = new Semaphore(maxWrites);
+		this.executor = newExecutor(maxReads + maxWrites);
+	}
+
+	private static ExecutorService newExecutor(int threads) {
+		try {
+			return (ExecutorService) MethodHandles.publicLookup()
+					.findStatic(Executors.class, "newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class))
+					.invoke();
+		} catch (Throwable ex) {
+			AtomicInteger count = new AtomicInteger();
+			return Executors.newFixedThreadPool(threads, r -> {
+				Thread t = new Thread(r, "sql-async-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			});
+		}
+	}
+
+	private <T> CompletableFuture<T> call(Semaphore permits, Supplier<T> work) {
+		return CompletableFuture.supplyAsync(() -> {
+			permits.acquireUninterruptibly();
+			try {
+				return work.get();
+			} finally {
+				permits.release();
+			}
+		}, executor);
+	}
+
+	private <T> CompletableFuture<T> read(Supplier<T> work) {
+		return call(readPermits, work);
+	}
+
+	private CompletableFuture<Void> read(Runnable work) {
+		return call(readPermits, () -> {
+			work.run();
+			return null;
+		});
+	}
+
+	private CompletableFuture<Void> write(Runnable work) {
+		return call(writePermits, () -> {
+			work.run();
+			return null;
+		});
+	}
+
+	@Override
+	public CompletableFuture<Void> saveUser(User user) {
+		return write(() -> db.saveUser(user));
+	}
+
+	@Override
+	public CompletableFuture<Void> saveUsers(Collection<User> users) {
+		return write(() -> db.saveUsers(users));
+	}
+
+	@Override
+	public CompletableFuture<Void> upsertUsers(Collection<User> users) {
+		return write(() -> db.upsertUsers(users));
+	}
+
+	@Override
+	public CompletableFuture<List<User>> findUsers() {
+		return read(() -> db.findUsers());
+	}
+
+	@Override
+	public CompletableFuture<List<User>> findUsers(Fetch fetch) {
+		return read(() -> db.findUsers(fetch));
+	}
+
+	@Override
+	public CompletableFuture<Void> forEachUser(Consumer<User> consumer) {
+		return read(() -> db.forEachUser(consumer));
+	}
+
+	@Override
+	public CompletableFuture<User> findUserById(String id) {
+		return read(() -> db.findUserById(id));
+	}
+
+	@Override
+	public CompletableFuture<List<User>> findUsersByIds(Collection<String> ids) {
+		return read(() -> db.findUsersByIds(ids));
+	}
+
+	@Override
+	public CompletableFuture<Void> saveTask(Task task) {
+		return write(() -> db.saveTask(task));
+	}
+
+	@Override
+	public CompletableFuture<Void> saveTasks(Collection<Task> tasks) {
+		return write(() -> db.saveTasks(tasks));
+	}
+
+	@Override
+	public CompletableFuture<Void> upsertTasks(Collection<Task> tasks) {
+		return write(() -> db.upsertTasks(tasks));
+	}
+
+	@Override
+	public CompletableFuture<List<Task>> findTasks() {
+		return read(() -> db.findTasks());
+	}
+
+	@Override
+	public CompletableFuture<List<Task>> findTasks(Fetch fetch) {
+		return read(() -> db.findTasks(fetch));
+	}
+
+	@Override
+	public CompletableFuture<List<Task>> findTasksAfter(Instant created, String id, int limit) {
+		return read(() -> db.findTasksAfter(created, id, limit));
+	}
+
+	@Override
+	public CompletableFuture<Void> forEachTask(Consumer<Task> consumer) {
+		return read(() -> db.forEachTask(consumer));
+	}
+
+	@Override
+	public CompletableFuture<Task> findTaskById(String id) {
+		return read(() -> db.findTaskById(id));
+	}
+
+	@Override
+	public CompletableFuture<List<Task>> findTasksByIds(Collection<String> ids) {
+		return read(() -> db.findTasksByIds(ids));
+	}
+
+	@Override
+	public CompletableFuture<long[]> countTasksByStatus() {
+		return read(() -> db.countTasksByStatus());
+	}
+
+	@Override
+	public CompletableFuture<Counts> countTasksByUser() {
+		return read(() -> db.countTasksByUser());
+	}
+
+	// Waits for submitted calls to finish; the wrapped Db is not closed.
+	@Override
+	public void close() {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException iex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -6,16 +6,32 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
+import java.sql.Types;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.UUID;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
 
-import org.hsqldb.jdbc.JDBCPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import todo.db.Counts;
 import todo.db.Db;
+import todo.db.Entity;
+import todo.db.Fetch;
 import todo.db.Task;
 import todo.db.TaskStatus;
 import todo.db.User;
@@ -25,201 +41,1003 @@ public class SqlDb implements Db, AutoCloseable {
 	public static final String DB_URL = "jdbc:hsqldb:mem:mymemdb";
 	public static final String DB_USER = "SA";
 	public static final String DB_PASSWORD = "";
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+	public static final int DEFAULT_FETCH_SIZE = 500;
+	public static final int IN_LIST_SIZE = 512;
+	// id lists are padded to one of these sizes, so each size has one cached statement
+	private static final int[] IN_LIST_SIZES = { 1, 4, 16, 64, 256, IN_LIST_SIZE };
+	private static final String[] IN_LIST_PLACERS = placers(IN_LIST_SIZES);
+	// rows per MERGE statement, largest first; a list is split without padding
+	private static final int[] UPSERT_SIZES = { 256, 64, 16, 4, 1 };
+	// a separate small pool, so long reads cannot take all writer connections
+	public static final int READ_POOL_SIZE = 4;
+	public static final SqlTxControl DEFAULT_TX_CONTROL = SqlTxControl.LOCKS;
+	public static final int DEFAULT_TX_ATTEMPTS = 5;
+	// first retry waits up to this long, doubling per attempt up to TX_MAX_BACKOFF_MICROS
+	private static final long TX_BACKOFF_MICROS = 1_000;
+	private static final long TX_MAX_BACKOFF_MICROS = 100_000;
 
 	private final Logger logger = LoggerFactory.getLogger(getClass());
-	private final JDBCPool pool;
+	private final SqlPool pool;
+	private final SqlPool readPool;
+	private final SqlTxControl txControl;
+	private int txAttempts = DEFAULT_TX_ATTEMPTS;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private int fetchSize = DEFAULT_FETCH_SIZE;
+	private SqlIdGenerator idGenerator = new SqlTimeIdGenerator();
+	private final SqlMetrics metrics = new SqlMetrics();
+	private final SqlProfiler profiler = new SqlProfiler(SqlProfiler.DEFAULT_SLOW_CAPACITY);
+	private final SqlResultCache resultCache = new SqlResultCache(0);
+	private volatile SqlGroupCommit<Task> taskGroupCommit = null;
+	private final ThreadLocal<TxScope> scope = new ThreadLocal<>();
 
 	public SqlDb() throws Exception {
+		this(DEFAULT_TX_CONTROL);
+	}
+
+	public SqlDb(SqlTxControl txControl) throws Exception {
 		super();
+		this.txControl = Objects.requireNonNull(txControl, "txControl");
 		Class.forName("org.hsqldb.jdbc.JDBCDriver");
 		logger.info("connect " + DB_URL);
-		this.pool = new JDBCPool();
-		this.pool.setUrl(DB_URL);
-		this.pool.setUser(DB_USER);
-		this.pool.setPassword(DB_PASSWORD);
+		this.pool = new SqlPool(DB_URL, DB_USER, DB_PASSWORD, SqlPool.DEFAULT_SIZE);
 		this.pool.setLoginTimeout(5);
+		this.readPool = new SqlPool(DB_URL, DB_USER, DB_PASSWORD, READ_POOL_SIZE);
+		this.readPool.setLoginTimeout(5);
+		this.readPool.setReadOnly(true);
 		tx("create schema", con -> {
-			execSql(con, "CREATE TABLE users (" + //
-			" id VARCHAR(100) PRIMARY KEY NOT NULL" + //
-			", login VARCHAR(100) NOT NULL UNIQUE" + //
-			", password VARCHAR(100) NOT NULL" + //
-			")");
-			execSql(con, "CREATE TABLE tasks (" + //
-			" id VARCHAR(100) PRIMARY KEY NOT NULL" + //
-			", created TIMESTAMP NOT NULL" + //
-			", title VARCHAR(100) NOT NULL" + //
-			", userId VARCHAR(100) NOT NULL REFERENCES users(id)" + //
-			", status VARCHAR(100) NOT NULL" + //
-			")");
+			execSql(con, "SET DATABASE TRANSACTION CONTROL " + txControl.name());
+			_createSchema(con);
 		});
 	}
 
+	public int getPoolSize() {
+		return pool.getSize();
+	}
+
+	public int getReadPoolSize() {
+		return readPool.getSize();
+	}
+
+	public SqlTxControl getTxControl() {
+		return txControl;
+	}
+
+	public int getTxAttempts() {
+		return txAttempts;
+	}
+
+	// How often tx runs a transaction that fails with a serialization failure
+	// or deadlock before giving up; 1 disables retries. inTransaction is never
+	// retried, since its work is the caller's and may have side effects.
+	public void setTxAttempts(int txAttempts) {
+		if (txAttempts < 1) {
+			throw new IllegalArgumentException("txAttempts must be >= 1 but was " + txAttempts);
+		}
+		this.txAttempts = txAttempts;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be >= 1 but was " + batchSize);
+		}
+		this.batchSize = batchSize;
+	}
+
+	public int getFetchSize() {
+		return fetchSize;
+	}
+
+	public void setFetchSize(int fetchSize) {
+		if (fetchSize < 1) {
+			throw new IllegalArgumentException("fetchSize must be >= 1 but was " + fetchSize);
+		}
+		this.fetchSize = fetchSize;
+	}
+
+	public SqlIdGenerator getIdGenerator() {
+		return idGenerator;
+	}
+
+	public void setIdGenerator(SqlIdGenerator idGenerator) {
+		this.idGenerator = idGenerator;
+	}
+
+	public int getStatementCacheSize() {
+		return pool.getStatementCacheSize();
+	}
+
+	public void setStatementCacheSize(int statementCacheSize) {
+		pool.setStatementCacheSize(statementCacheSize);
+		readPool.setStatementCacheSize(statementCacheSize);
+	}
+
+	public SqlStatementCache.Stats statementCacheStats() {
+		return pool.statementCacheStats().plus(readPool.statementCacheStats());
+	}
+
+	public SqlMetrics.Snapshot metrics() {
+		return metrics.snapshot();
+	}
+
+	public boolean isProfiling() {
+		return profiler.isEnabled();
+	}
+
+	// Statement timings cost two nanoTime calls per row, so they are off
+	// until profiling is switched on.
+	public void setProfiling(boolean profiling) {
+		profiler.setEnabled(profiling);
+	}
+
+	public long getSlowQueryMillis() {
+		return profiler.getSlowMillis();
+	}
+
+	public void setSlowQueryMillis(long slowQueryMillis) {
+		profiler.setSlowMillis(slowQueryMillis);
+	}
+
+	public Map<String, SqlProfiler.StatementSnapshot> statementStats() {
+		return profiler.snapshot();
+	}
+
+	public List<SqlProfiler.SlowQuery> slowQueries() {
+		return profiler.slowQueries();
+	}
+
+	public int getResultCacheSize() {
+		return resultCache.getCapacity();
+	}
+
+	// 0 (the default) disables the cache. Cached lists are unmodifiable and
+	// their entities are shared between callers, so they must not be changed.
+	public void setResultCacheSize(int resultCacheSize) {
+		resultCache.setCapacity(resultCacheSize);
+	}
+
+	public SqlResultCache.Stats resultCacheStats() {
+		return resultCache.stats();
+	}
+
+	// Opt-in: concurrent saveTask calls are queued and written by one thread,
+	// up to maxItems per transaction, waiting at most maxWaitMicros for more.
+	public void enableGroupCommit(int maxItems, long maxWaitMicros) {
+		disableGroupCommit();
+		taskGroupCommit = new SqlGroupCommit<>("sql-group-commit", maxItems, maxWaitMicros, this::saveTasks, this::saveTaskNow);
+	}
+
+	public void disableGroupCommit() {
+		SqlGroupCommit<Task> group = taskGroupCommit;
+		taskGroupCommit = null;
+		if (group != null) {
+			group.close();
+		}
+	}
+
 	private void execSql(Connection con, String sql) throws SQLException {
 		try (Statement st = con.createStatement()) {
 			st.execute(sql);
 		}
 	}
 
+	// work gets this SqlDb; the transaction is bound to the calling thread,
+	// so only calls made on that thread join it.
+	@Override
+	public void inTransaction(Consumer<Db> work) {
+		tx("inTransaction", 1, con -> work.accept(this));
+	}
+
 	@Override
 	public void saveUser(User user) {
+		if (user.getId() != null && _dirtyUser(user) == 0) {
+			return;
+		}
 		tx("saveUser", con -> {
 			if (user.getId() == null) {
-				user.setId(uuid());
+				newId(user);
 				_insertUser(con, user);
 			} else {
 				_updateUser(con, user);
 			}
+			afterCommit(() -> _snapshotUser(user));
+		});
+	}
+
+	@Override
+	public void saveUsers(Collection<User> users) {
+		List<User> inserts = new ArrayList<>();
+		List<User> updates = new ArrayList<>();
+		for (User user : users) {
+			if (user.getId() == null) {
+				inserts.add(user);
+			} else if (_dirtyUser(user) != 0) {
+				updates.add(user);
+			}
+		}
+		if (inserts.isEmpty() && updates.isEmpty()) {
+			return;
+		}
+		tx("saveUsers", con -> {
+			for (User user : inserts) {
+				newId(user);
+			}
+			_insertUserBatch(con, inserts);
+			_updateUserBatch(con, updates);
+			afterCommit(() -> {
+				for (User user : inserts) {
+					_snapshotUser(user);
+				}
+				for (User user : updates) {
+					_snapshotUser(user);
+				}
+			});
+		});
+	}
+
+	@Override
+	public void upsertUsers(Collection<User> users) {
+		List<User> list = lastPerId(users);
+		if (list.isEmpty()) {
+			return;
+		}
+		tx("upsertUsers", con -> {
+			for (User user : list) {
+				if (user.getId() == null) {
+					newId(user);
+				}
+			}
+			_upsertUserBatch(con, list);
+			afterCommit(() -> {
+				for (User user : list) {
+					_snapshotUser(user);
+				}
+			});
 		});
 	}
 
 	@Override
 	public List<User> findUsers() {
-		SqlList<User> users = new SqlList<>();
-		SqlList<Task> tasks = new SqlList<>();
-		tx("findUsers", con -> {
-			String sql = "SELECT " + _userCols("users") + ", " + _taskCols("tasks") + " FROM users " + //
-			" LEFT JOIN tasks ON tasks.userId=users.id " + //
-			" ORDER BY users.login, tasks.created";
-			query(con, sql, rst -> {
+		return findUsers(Fetch.Join);
+	}
+
+	@Override
+	public List<User> findUsers(Fetch fetch) {
+		return cached("findUsers", () -> {
+			List<User> users = new ArrayList<>();
+			readTx("findUsers", con -> {
+				users.addAll(_findUsersWithTasks(con, fetch));
+			});
+			return resultCache.getCapacity() == 0 ? users : Collections.unmodifiableList(users);
+		}, USER_TABLE, TASK_TABLE);
+	}
+
+	@Override
+	public void forEachUser(Consumer<User> consumer) {
+		readTx("forEachUser", con -> {
+			User[] current = new User[1];
+			long[] consumed = new long[1];
+			Consumer<User> timed = timed(consumer, consumed);
+			cursor(con, USER_WITH_TASKS_JOIN, consumed, rst -> {
 				SqlIndex si = new SqlIndex();
-				users.add(_readUser(rst, si));
-				tasks.add(_readTask(rst, si));
+				User user = _readUser(rst, si);
+				Task task = _readTask(rst, si);
+				if (current[0] == null || !current[0].getId().equals(user.getId())) {
+					if (current[0] != null) {
+						timed.accept(current[0]);
+					}
+					user.setTasks(new ArrayList<>());
+					current[0] = user;
+				}
+				if (task.getId() != null) {
+					current[0].getTasks().add(task);
+				}
 			});
-			for (User user : users.list()) {
-				user.setTasks(new ArrayList<>());
-			}
-			for (Task task : tasks.list()) {
-				User user = users.need(task.getUserId());
-				user.getTasks().add(task);
+			if (current[0] != null) {
+				consumer.accept(current[0]);
 			}
 		});
-		return users.list();
 	}
 
 	@Override
 	public void saveTask(Task task) {
+		if (task.getId() != null && _dirtyTask(task) == 0) {
+			return;
+		}
+		SqlGroupCommit<Task> group = taskGroupCommit;
+		if (group != null && writeScope() == null) {
+			group.save(task);
+		} else {
+			saveTaskNow(task);
+		}
+	}
+
+	private void saveTaskNow(Task task) {
 		tx("saveTask", con -> {
 			if (task.getId() == null) {
-				task.setId(uuid());
+				newId(task);
 				_insertTask(con, task);
 			} else {
 				_updateTask(con, task);
 			}
+			afterCommit(() -> _snapshotTask(task));
+		});
+	}
+
+	@Override
+	public void saveTasks(Collection<Task> tasks) {
+		List<Task> inserts = new ArrayList<>();
+		List<Task> updates = new ArrayList<>();
+		for (Task task : tasks) {
+			if (task.getId() == null) {
+				inserts.add(task);
+			} else if (_dirtyTask(task) != 0) {
+				updates.add(task);
+			}
+		}
+		if (inserts.isEmpty() && updates.isEmpty()) {
+			return;
+		}
+		tx("saveTasks", con -> {
+			for (Task task : inserts) {
+				newId(task);
+			}
+			_insertTaskBatch(con, inserts);
+			_updateTaskBatch(con, updates);
+			afterCommit(() -> {
+				for (Task task : inserts) {
+					_snapshotTask(task);
+				}
+				for (Task task : updates) {
+					_snapshotTask(task);
+				}
+			});
+		});
+	}
+
+	@Override
+	public void upsertTasks(Collection<Task> tasks) {
+		List<Task> list = lastPerId(tasks);
+		if (list.isEmpty()) {
+			return;
+		}
+		tx("upsertTasks", con -> {
+			for (Task task : list) {
+				if (task.getId() == null) {
+					newId(task);
+				}
+			}
+			_upsertTaskBatch(con, list);
+			afterCommit(() -> {
+				for (Task task : list) {
+					_snapshotTask(task);
+				}
+			});
 		});
 	}
 
 	@Override
 	public List<Task> findTasks() {
-		SqlList<Task> tasks = new SqlList<>();
-		SqlList<User> users = new SqlList<>();
-		tx("findTasks", con -> {
-			String sql = "SELECT " + _taskCols("tasks") + ", " + _userCols("users");
-			sql += " FROM tasks ";
-			sql += " LEFT JOIN users ON users.id = tasks.userId ";
-			sql += " ORDER BY tasks.created";
-			query(con, sql, rst -> {
+		return findTasks(Fetch.Join);
+	}
+
+	@Override
+	public List<Task> findTasks(Fetch fetch) {
+		return cached("findTasks", () -> {
+			List<Task> tasks = new ArrayList<>();
+			readTx("findTasks", con -> {
+				tasks.addAll(_findTasksWithUser(con, fetch));
+			});
+			return resultCache.getCapacity() == 0 ? tasks : Collections.unmodifiableList(tasks);
+		}, TASK_TABLE, USER_TABLE);
+	}
+
+	@Override
+	public List<Task> findTasksAfter(Instant created, String id, int limit) {
+		List<Task> tasks = new ArrayList<>();
+		readTx("findTasksAfter", con -> {
+			tasks.addAll(_findTasksAfter(con, created, id, limit));
+			Set<String> userIds = new LinkedHashSet<>();
+			for (Task task : tasks) {
+				userIds.add(task.getUserId());
+			}
+			SqlList<User> users = _findUsersByIds(con, userIds);
+			for (Task task : tasks) {
+				task.setUser(users.need(task.getUserId()));
+			}
+		});
+		return tasks;
+	}
+
+	@Override
+	public void forEachTask(Consumer<Task> consumer) {
+		readTx("forEachTask", con -> {
+			long[] consumed = new long[1];
+			Consumer<Task> timed = timed(consumer, consumed);
+			cursor(con, TASK_WITH_USER_JOIN, consumed, rst -> {
 				SqlIndex si = new SqlIndex();
-				tasks.add(_readTask(rst, si));
-				users.add(_readUser(rst, si));
+				Task task = _readTask(rst, si);
+				User user = _readUser(rst, si);
+				task.setUser(user.getId() == null ? null : user);
+				timed.accept(task);
 			});
-			for (Task task : tasks.list()) {
-				User user = users.need(task.getUserId());
-				task.setUser(user);
+		});
+	}
+
+	public <E extends Entity> void save(SqlMapper<E> mapper, E e) {
+		tx("save " + mapper.getTable(), con -> {
+			if (e.getId() == null) {
+				newId(e);
+				update(con, mapper.getInsertSql(), pst -> {
+					SqlIndex si = new SqlIndex();
+					pst.setString(si.next(), e.getId());
+					mapper.write(pst, e, si);
+				});
+			} else {
+				update(con, mapper.getUpdateSql(), pst -> {
+					SqlIndex si = new SqlIndex();
+					mapper.write(pst, e, si);
+					pst.setString(si.next(), e.getId());
+				});
 			}
+			changed(con, mapper.getTable());
 		});
-		return tasks.list();
+	}
+
+	public <E extends Entity> List<E> findAll(SqlMapper<E> mapper, String order) {
+		SqlList<E> list = new SqlList<>();
+		readTx("findAll " + mapper.getTable(), con -> {
+			query(con, mapper.getSelectSql() + " ORDER BY " + order, rst -> {
+				list.add(mapper.read(rst, new SqlIndex()));
+			});
+		});
+		return list.list();
 	}
 
 	@Override
 	public void close() throws Exception {
-		pool.close(0);
+		disableGroupCommit();
+		pool.close();
+		readPool.close();
 	}
 
 	// @sql-begin
 
 
-    // class Task
-
-    private String _taskCols(String alias) {
-        if (alias == null || alias.isEmpty()) {
-            return "id,created,userId,title,status";
-        }
-        return alias + ".id" + "," + alias + ".created" + "," + alias + ".userId" + "," + alias + ".title" + "," + alias + ".status";
-    }
-
-    private Task _readTask(ResultSet rst, SqlIndex si) throws SQLException {
-        String id = rst.getString(si.next());
-        Instant created = toInstant(rst.getTimestamp(si.next()));
-        String userId = rst.getString(si.next());
-        String title = rst.getString(si.next());
-        TaskStatus status = toTaskStatus(rst.getString(si.next()));
-        return new Task(id,created,userId,title,status);
-    }
-
-    private void _writeTask(PreparedStatement pst, Task task, SqlIndex si) throws SQLException {
-        pst.setTimestamp(si.next(), toTimestamp(task.getCreated()));
-        pst.setString(si.next(), task.getUserId());
-        pst.setString(si.next(), task.getTitle());
-        pst.setString(si.next(), toVarchar(task.getStatus()));
-    }
-
-    private void _insertTask(Connection con, Task task) throws SQLException {
-        String sql = "INSERT INTO tasks(id,created,userId,title,status) VALUES(?,?,?,?,?)";
-        update(con, sql, pst -> {
-            SqlIndex si = new SqlIndex();
-            pst.setString(si.next(), task.getId());
-            _writeTask(pst, task, si);
-        });
-    }
-
-    private void _updateTask(Connection con, Task task) throws SQLException {
-        String sql = "UPDATE tasks SET created=?,userId=?,title=?,status=? WHERE id=?";
-        update(con, sql, pst -> {
-            SqlIndex si = new SqlIndex();
-            _writeTask(pst, task, si);
-            pst.setString(si.next(), task.getId());
-        });
-    }
-
-    // class User
-
-    private String _userCols(String alias) {
-        if (alias == null || alias.isEmpty()) {
-            return "id,login,password";
-        }
-        return alias + ".id" + "," + alias + ".login" + "," + alias + ".password";
-    }
-
-    private User _readUser(ResultSet rst, SqlIndex si) throws SQLException {
-        String id = rst.getString(si.next());
-        String login = rst.getString(si.next());
-        String password = rst.getString(si.next());
-        return new User(id,login,password);
-    }
-
-    private void _writeUser(PreparedStatement pst, User user, SqlIndex si) throws SQLException {
-        pst.setString(si.next(), user.getLogin());
-        pst.setString(si.next(), user.getPassword());
-    }
-
-    private void _insertUser(Connection con, User user) throws SQLException {
-        String sql = "INSERT INTO users(id,login,password) VALUES(?,?,?)";
-        update(con, sql, pst -> {
-            SqlIndex si = new SqlIndex();
-            pst.setString(si.next(), user.getId());
-            _writeUser(pst, user, si);
-        });
-    }
-
-    private void _updateUser(Connection con, User user) throws SQLException {
-        String sql = "UPDATE users SET login=?,password=? WHERE id=?";
-        update(con, sql, pst -> {
-            SqlIndex si = new SqlIndex();
-            _writeUser(pst, user, si);
-            pst.setString(si.next(), user.getId());
-        });
-    }
-
+    // class Task
+
+    private static final String TASK_TABLE = "tasks";
+    private static final String TASK_SELECT = "SELECT tasks.id,tasks.created,tasks.userId,tasks.title,tasks.status FROM tasks ORDER BY tasks.created,tasks.id";
+    private static final String[] TASK_SELECT_BY_IDS = inLists("SELECT tasks.id,tasks.created,tasks.userId,tasks.title,tasks.status FROM tasks WHERE tasks.id IN ", "");
+    private static final String TASK_INSERT = "INSERT INTO tasks(id,created,userId,title,status) VALUES(?,?,?,?,?)";
+    private static final String TASK_UPDATE = "UPDATE tasks SET created=?,userId=?,title=?,status=? WHERE id=?";
+    private static final String TASK_UPSERT_ROW = "(?,?,?,?,?)";
+    private static final String TASK_UPSERT_TAIL = ") AS v(id,created,userId,title,status) ON tasks.id=v.id WHEN MATCHED THEN UPDATE SET created=v.created,userId=v.userId,title=v.title,status=v.status WHEN NOT MATCHED THEN INSERT (id,created,userId,title,status) VALUES (v.id,v.created,v.userId,v.title,v.status)";
+    private static final int TASK_ALL_FIELDS = 15;
+
+    private Task _readTask(ResultSet rst, SqlIndex si) throws SQLException {
+        String id = rst.getString(si.next());
+        Instant created = toInstant(rst.getTimestamp(si.next()));
+        String userId = rst.getString(si.next());
+        String title = rst.getString(si.next());
+        TaskStatus status = taskStatusOfOrdinal("tasks.status", rst.getShort(si.next()), rst.wasNull());
+        return _snapshotTask(new Task(id,created,userId,title,status));
+    }
+
+    private SqlList<Task> _findTasksByIds(Connection con, Collection<String> ids) throws SQLException {
+        SqlList<Task> found = new SqlList<>(ids.size());
+        queryIn(con, TASK_SELECT_BY_IDS, ids, rst -> {
+            found.add(_readTask(rst, new SqlIndex()));
+        });
+        SqlList<Task> tasks = new SqlList<>(found.size());
+        for (String id : ids) {
+            tasks.add(found.find(id));
+        }
+        return tasks;
+    }
+
+    @Override
+    public Task findTaskById(String id) {
+        Task[] task = new Task[1];
+        readTx("findTaskById", con -> {
+            task[0] = _findTasksByIds(con, Collections.singletonList(id)).firstOrNull();
+        });
+        return task[0];
+    }
+
+    @Override
+    public List<Task> findTasksByIds(Collection<String> ids) {
+        List<Task> tasks = new ArrayList<>(ids.size());
+        readTx("findTasksByIds", con -> {
+            tasks.addAll(_findTasksByIds(con, ids).list());
+        });
+        return tasks;
+    }
+
+    private void _writeTask(PreparedStatement pst, Task task, SqlIndex si, int fields) throws SQLException {
+        if ((fields & 1) != 0) {
+            pst.setTimestamp(si.next(), toTimestamp(task.getCreated()));
+        }
+        if ((fields & 2) != 0) {
+            pst.setString(si.next(), task.getUserId());
+        }
+        if ((fields & 4) != 0) {
+            pst.setString(si.next(), task.getTitle());
+        }
+        if ((fields & 8) != 0) {
+            setTaskStatusOrdinal(pst, si.next(), task.getStatus());
+        }
+    }
+
+    private Task _snapshotTask(Task task) {
+        task.setSnapshot(new Object[] { task.getCreated(), task.getUserId(), task.getTitle(), task.getStatus() });
+        return task;
+    }
+
+    private int _dirtyTask(Task task) {
+        Object[] snapshot = task.getSnapshot();
+        if (snapshot == null) {
+            return TASK_ALL_FIELDS;
+        }
+        int fields = 0;
+        if (!Objects.equals(snapshot[0], task.getCreated())) {
+            fields |= 1;
+        }
+        if (!Objects.equals(snapshot[1], task.getUserId())) {
+            fields |= 2;
+        }
+        if (!Objects.equals(snapshot[2], task.getTitle())) {
+            fields |= 4;
+        }
+        if (!Objects.equals(snapshot[3], task.getStatus())) {
+            fields |= 8;
+        }
+        return fields;
+    }
+
+    private final Map<Integer, String> _taskUpdateByFields = new ConcurrentHashMap<>();
+
+    private String _taskUpdate(int fields) {
+        if (fields == TASK_ALL_FIELDS) {
+            return TASK_UPDATE;
+        }
+        return _taskUpdateByFields.computeIfAbsent(fields, f -> {
+            StringJoiner sets = new StringJoiner(",");
+            if ((f & 1) != 0) {
+                sets.add("created=?");
+            }
+            if ((f & 2) != 0) {
+                sets.add("userId=?");
+            }
+            if ((f & 4) != 0) {
+                sets.add("title=?");
+            }
+            if ((f & 8) != 0) {
+                sets.add("status=?");
+            }
+            return "UPDATE tasks SET " + sets + " WHERE id=?";
+        });
+    }
+
+    private void _insertTask(Connection con, Task task) throws SQLException {
+        update(con, TASK_INSERT, pst -> {
+            SqlIndex si = new SqlIndex();
+            pst.setString(si.next(), task.getId());
+            _writeTask(pst, task, si, TASK_ALL_FIELDS);
+        });
+        changed(con, TASK_TABLE);
+    }
+
+    private void _insertTaskBatch(Connection con, List<Task> tasks) throws SQLException {
+        batch(con, TASK_INSERT, tasks, (pst, task) -> {
+            SqlIndex si = new SqlIndex();
+            pst.setString(si.next(), task.getId());
+            _writeTask(pst, task, si, TASK_ALL_FIELDS);
+        });
+        if (!tasks.isEmpty()) {
+            changed(con, TASK_TABLE);
+        }
+    }
+
+    private void _updateTask(Connection con, Task task) throws SQLException {
+        int fields = _dirtyTask(task);
+        if (fields == 0) {
+            return;
+        }
+        update(con, _taskUpdate(fields), pst -> {
+            SqlIndex si = new SqlIndex();
+            _writeTask(pst, task, si, fields);
+            pst.setString(si.next(), task.getId());
+        });
+        changed(con, TASK_TABLE);
+    }
+
+    private void _updateTaskBatch(Connection con, List<Task> tasks) throws SQLException {
+        Map<Integer, List<Task>> byFields = new HashMap<>();
+        for (Task task : tasks) {
+            int fields = _dirtyTask(task);
+            if (fields != 0) {
+                byFields.computeIfAbsent(fields, f -> new ArrayList<>()).add(task);
+            }
+        }
+        for (Map.Entry<Integer, List<Task>> e : byFields.entrySet()) {
+            int fields = e.getKey();
+            batch(con, _taskUpdate(fields), e.getValue(), (pst, task) -> {
+                SqlIndex si = new SqlIndex();
+                _writeTask(pst, task, si, fields);
+                pst.setString(si.next(), task.getId());
+            });
+        }
+        if (!byFields.isEmpty()) {
+            changed(con, TASK_TABLE);
+        }
+    }
+
+    private final Map<Integer, String> _taskUpsertByRows = new ConcurrentHashMap<>();
+
+    private String _taskUpsert(int rows) {
+        return _taskUpsertByRows.computeIfAbsent(rows, n -> "MERGE INTO tasks USING (VALUES " + String.join(",", Collections.nCopies(n, TASK_UPSERT_ROW)) + TASK_UPSERT_TAIL);
+    }
+
+    private void _upsertTaskBatch(Connection con, List<Task> tasks) throws SQLException {
+        upsert(con, tasks, this::_taskUpsert, (pst, task, si) -> {
+            pst.setString(si.next(), task.getId());
+            _writeTask(pst, task, si, TASK_ALL_FIELDS);
+        });
+        if (!tasks.isEmpty()) {
+            changed(con, TASK_TABLE);
+        }
+    }
+
+    private static final String TASK_PAGE_CREATED_ID_FIRST = "SELECT tasks.id,tasks.created,tasks.userId,tasks.title,tasks.status FROM tasks ORDER BY tasks.created,tasks.id LIMIT ?";
+    private static final String TASK_PAGE_CREATED_ID_AFTER = "SELECT tasks.id,tasks.created,tasks.userId,tasks.title,tasks.status FROM tasks WHERE tasks.created>=? AND (tasks.created>? OR tasks.id>?) ORDER BY tasks.created,tasks.id LIMIT ?";
+
+    private List<Task> _findTasksAfter(Connection con, Instant created, String id, int limit) throws SQLException {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be >= 1 but was " + limit);
+        }
+        List<Task> tasks = new ArrayList<>(Math.min(limit, 256));
+        Reader r = rst -> {
+            tasks.add(_readTask(rst, new SqlIndex()));
+        };
+        if (created == null) {
+            query(con, TASK_PAGE_CREATED_ID_FIRST, pst -> {
+                pst.setInt(1, limit);
+            }, r);
+        } else {
+            query(con, TASK_PAGE_CREATED_ID_AFTER, pst -> {
+                SqlIndex si = new SqlIndex();
+                pst.setTimestamp(si.next(), toTimestamp(created));
+                pst.setTimestamp(si.next(), toTimestamp(created));
+                pst.setString(si.next(), id);
+                pst.setInt(si.next(), limit);
+            }, r);
+        }
+        return tasks;
+    }
+
+    // count Task by status
+
+    private static final String TASK_COUNT_BY_STATUS = "SELECT tasks.status,COUNT(*) FROM tasks GROUP BY tasks.status";
+
+    private long[] _countTasksByStatus(Connection con) throws SQLException {
+        long[] counts = new long[TaskStatus.values().length];
+        query(con, TASK_COUNT_BY_STATUS, rst -> {
+            TaskStatus status = taskStatusOfOrdinal("tasks.status", rst.getShort(1), rst.wasNull());
+            if (status != null) {
+                counts[status.ordinal()] = rst.getLong(2);
+            }
+        });
+        return counts;
+    }
+
+    @Override
+    public long[] countTasksByStatus() {
+        long[][] counts = new long[1][];
+        readTx("countTasksByStatus", con -> {
+            counts[0] = _countTasksByStatus(con);
+        });
+        return counts[0];
+    }
+
+    // count Task by userId
+
+    private static final String TASK_COUNT_BY_USER_ID = "SELECT tasks.userId,COUNT(*) FROM tasks GROUP BY tasks.userId";
+
+    private Counts _countTasksByUser(Connection con) throws SQLException {
+        Counts counts = new Counts();
+        query(con, TASK_COUNT_BY_USER_ID, rst -> {
+            counts.add(rst.getString(1), rst.getLong(2));
+        });
+        return counts;
+    }
+
+    @Override
+    public Counts countTasksByUser() {
+        Counts[] counts = new Counts[1];
+        readTx("countTasksByUser", con -> {
+            counts[0] = _countTasksByUser(con);
+        });
+        return counts[0];
+    }
+
+    // class User
+
+    private static final String USER_TABLE = "users";
+    private static final String USER_SELECT = "SELECT users.id,users.login,users.password FROM users ORDER BY users.login,users.id";
+    private static final String[] USER_SELECT_BY_IDS = inLists("SELECT users.id,users.login,users.password FROM users WHERE users.id IN ", "");
+    private static final String USER_INSERT = "INSERT INTO users(id,login,password) VALUES(?,?,?)";
+    private static final String USER_UPDATE = "UPDATE users SET login=?,password=? WHERE id=?";
+    private static final String USER_UPSERT_ROW = "(?,?,?)";
+    private static final String USER_UPSERT_TAIL = ") AS v(id,login,password) ON users.id=v.id WHEN MATCHED THEN UPDATE SET login=v.login,password=v.password WHEN NOT MATCHED THEN INSERT (id,login,password) VALUES (v.id,v.login,v.password)";
+    private static final int USER_ALL_FIELDS = 3;
+
+    private User _readUser(ResultSet rst, SqlIndex si) throws SQLException {
+        String id = rst.getString(si.next());
+        String login = rst.getString(si.next());
+        String password = rst.getString(si.next());
+        return _snapshotUser(new User(id,login,password));
+    }
+
+    private SqlList<User> _findUsersByIds(Connection con, Collection<String> ids) throws SQLException {
+        SqlList<User> found = new SqlList<>(ids.size());
+        queryIn(con, USER_SELECT_BY_IDS, ids, rst -> {
+            found.add(_readUser(rst, new SqlIndex()));
+        });
+        SqlList<User> users = new SqlList<>(found.size());
+        for (String id : ids) {
+            users.add(found.find(id));
+        }
+        return users;
+    }
+
+    @Override
+    public User findUserById(String id) {
+        User[] user = new User[1];
+        readTx("findUserById", con -> {
+            user[0] = _findUsersByIds(con, Collections.singletonList(id)).firstOrNull();
+        });
+        return user[0];
+    }
+
+    @Override
+    public List<User> findUsersByIds(Collection<String> ids) {
+        List<User> users = new ArrayList<>(ids.size());
+        readTx("findUsersByIds", con -> {
+            users.addAll(_findUsersByIds(con, ids).list());
+        });
+        return users;
+    }
+
+    private void _writeUser(PreparedStatement pst, User user, SqlIndex si, int fields) throws SQLException {
+        if ((fields & 1) != 0) {
+            pst.setString(si.next(), user.getLogin());
+        }
+        if ((fields & 2) != 0) {
+            pst.setString(si.next(), user.getPassword());
+        }
+    }
+
+    private User _snapshotUser(User user) {
+        user.setSnapshot(new Object[] { user.getLogin(), user.getPassword() });
+        return user;
+    }
+
+    private int _dirtyUser(User user) {
+        Object[] snapshot = user.getSnapshot();
+        if (snapshot == null) {
+            return USER_ALL_FIELDS;
+        }
+        int fields = 0;
+        if (!Objects.equals(snapshot[0], user.getLogin())) {
+            fields |= 1;
+        }
+        if (!Objects.equals(snapshot[1], user.getPassword())) {
+            fields |= 2;
+        }
+        return fields;
+    }
+
+    private final Map<Integer, String> _userUpdateByFields = new ConcurrentHashMap<>();
+
+    private String _userUpdate(int fields) {
+        if (fields == USER_ALL_FIELDS) {
+            return USER_UPDATE;
+        }
+        return _userUpdateByFields.computeIfAbsent(fields, f -> {
+            StringJoiner sets = new StringJoiner(",");
+            if ((f & 1) != 0) {
+                sets.add("login=?");
+            }
+            if ((f & 2) != 0) {
+                sets.add("password=?");
+            }
+            return "UPDATE users SET " + sets + " WHERE id=?";
+        });
+    }
+
+    private void _insertUser(Connection con, User user) throws SQLException {
+        update(con, USER_INSERT, pst -> {
+            SqlIndex si = new SqlIndex();
+            pst.setString(si.next(), user.getId());
+            _writeUser(pst, user, si, USER_ALL_FIELDS);
+        });
+        changed(con, USER_TABLE);
+    }
+
+    private void _insertUserBatch(Connection con, List<User> users) throws SQLException {
+        batch(con, USER_INSERT, users, (pst, user) -> {
+            SqlIndex si = new SqlIndex();
+            pst.setString(si.next(), user.getId());
+            _writeUser(pst, user, si, USER_ALL_FIELDS);
+        });
+        if (!users.isEmpty()) {
+            changed(con, USER_TABLE);
+        }
+    }
+
+    private void _updateUser(Connection con, User user) throws SQLException {
+        int fields = _dirtyUser(user);
+        if (fields == 0) {
+            return;
+        }
+        update(con, _userUpdate(fields), pst -> {
+            SqlIndex si = new SqlIndex();
+            _writeUser(pst, user, si, fields);
+            pst.setString(si.next(), user.getId());
+        });
+        changed(con, USER_TABLE);
+    }
+
+    private void _updateUserBatch(Connection con, List<User> users) throws SQLException {
+        Map<Integer, List<User>> byFields = new HashMap<>();
+        for (User user : users) {
+            int fields = _dirtyUser(user);
+            if (fields != 0) {
+                byFields.computeIfAbsent(fields, f -> new ArrayList<>()).add(user);
+            }
+        }
+        for (Map.Entry<Integer, List<User>> e : byFields.entrySet()) {
+            int fields = e.getKey();
+            batch(con, _userUpdate(fields), e.getValue(), (pst, user) -> {
+                SqlIndex si = new SqlIndex();
+                _writeUser(pst, user, si, fields);
+                pst.setString(si.next(), user.getId());
+            });
+        }
+        if (!byFields.isEmpty()) {
+            changed(con, USER_TABLE);
+        }
+    }
+
+    private final Map<Integer, String> _userUpsertByRows = new ConcurrentHashMap<>();
+
+    private String _userUpsert(int rows) {
+        return _userUpsertByRows.computeIfAbsent(rows, n -> "MERGE INTO users USING (VALUES " + String.join(",", Collections.nCopies(n, USER_UPSERT_ROW)) + USER_UPSERT_TAIL);
+    }
+
+    private void _upsertUserBatch(Connection con, List<User> users) throws SQLException {
+        upsert(con, users, this::_userUpsert, (pst, user, si) -> {
+            pst.setString(si.next(), user.getId());
+            _writeUser(pst, user, si, USER_ALL_FIELDS);
+        });
+        if (!users.isEmpty()) {
+            changed(con, USER_TABLE);
+        }
+    }
+
+    // ref Task.userId -> User
+
+    private static final String[] TASK_SELECT_BY_USER_IDS = inLists("SELECT tasks.id,tasks.created,tasks.userId,tasks.title,tasks.status FROM tasks WHERE tasks.userId IN ", " ORDER BY tasks.created,tasks.id");
+    private static final String USER_WITH_TASKS_JOIN = "SELECT users.id,users.login,users.password,tasks.id,tasks.created,tasks.userId,tasks.title,tasks.status FROM users LEFT JOIN tasks ON tasks.userId=users.id ORDER BY users.login,users.id,tasks.created,tasks.id";
+    private static final String TASK_WITH_USER_JOIN = "SELECT tasks.id,tasks.created,tasks.userId,tasks.title,tasks.status,users.id,users.login,users.password FROM tasks LEFT JOIN users ON users.id=tasks.userId ORDER BY tasks.created,tasks.id";
+
+    private List<Task> _findTasksByUserIds(Connection con, Collection<String> userIds) throws SQLException {
+        SqlList<Task> tasks = new SqlList<>();
+        queryIn(con, TASK_SELECT_BY_USER_IDS, userIds, rst -> {
+            tasks.add(_readTask(rst, new SqlIndex()));
+        });
+        return tasks.list();
+    }
+
+    private List<User> _findUsersWithTasks(Connection con, Fetch fetch) throws SQLException {
+        SqlList<User> users = new SqlList<>();
+        List<Task> tasks;
+        if (fetch == Fetch.Join) {
+            SqlList<Task> joined = new SqlList<>();
+            query(con, USER_WITH_TASKS_JOIN, rst -> {
+                SqlIndex si = new SqlIndex();
+                users.add(_readUser(rst, si));
+                joined.add(_readTask(rst, si));
+            });
+            tasks = joined.list();
+        } else {
+            query(con, USER_SELECT, rst -> {
+                users.add(_readUser(rst, new SqlIndex()));
+            });
+            List<String> ids = new ArrayList<>();
+            for (User user : users.list()) {
+                ids.add(user.getId());
+            }
+            tasks = _findTasksByUserIds(con, ids);
+        }
+        for (User user : users.list()) {
+            user.setTasks(new ArrayList<>());
+        }
+        for (Task task : tasks) {
+            users.need(task.getUserId()).getTasks().add(task);
+        }
+        return users.list();
+    }
+
+    private List<Task> _findTasksWithUser(Connection con, Fetch fetch) throws SQLException {
+        SqlList<Task> tasks = new SqlList<>();
+        SqlList<User> users;
+        if (fetch == Fetch.Join) {
+            SqlList<User> joined = new SqlList<>();
+            query(con, TASK_WITH_USER_JOIN, rst -> {
+                SqlIndex si = new SqlIndex();
+                tasks.add(_readTask(rst, si));
+                joined.add(_readUser(rst, si));
+            });
+            users = joined;
+        } else {
+            query(con, TASK_SELECT, rst -> {
+                tasks.add(_readTask(rst, new SqlIndex()));
+            });
+            Set<String> ids = new LinkedHashSet<>();
+            for (Task task : tasks.list()) {
+                ids.add(task.getUserId());
+            }
+            users = _findUsersByIds(con, ids);
+        }
+        for (Task task : tasks.list()) {
+            task.setUser(users.need(task.getUserId()));
+        }
+        return tasks.list();
+    }
+
+    // enum TaskStatus as ordinal
+
+    private static final TaskStatus[] TASK_STATUS_BY_ORDINAL = TaskStatus.values();
+
+    private TaskStatus taskStatusOfOrdinal(String column, short ordinal, boolean isNull) {
+        return isNull ? null : SqlEnums.ofOrdinal(TASK_STATUS_BY_ORDINAL, column, ordinal);
+    }
+
+    private void setTaskStatusOrdinal(PreparedStatement pst, int index, TaskStatus value) throws SQLException {
+        if (value == null) {
+            pst.setNull(index, Types.SMALLINT);
+        } else {
+            pst.setShort(index, (short) value.ordinal());
+        }
+    }
+
+    // schema
+
+    private static final String[] USER_DDL = {
+        "CREATE TABLE users (id VARCHAR(100) PRIMARY KEY NOT NULL, login VARCHAR(100) NOT NULL, password VARCHAR(100) NOT NULL)",
+        "CREATE UNIQUE INDEX users_login ON users(login)",
+    };
+    private static final String[] TASK_DDL = {
+        "CREATE TABLE tasks (id VARCHAR(100) PRIMARY KEY NOT NULL, created TIMESTAMP NOT NULL, userId VARCHAR(100) NOT NULL REFERENCES users(id), title VARCHAR(100) NOT NULL, status SMALLINT NOT NULL)",
+        "CREATE INDEX tasks_created_id ON tasks(created,id)",
+        "CREATE INDEX tasks_userId_created ON tasks(userId,created)",
+    };
+
+    private void _createSchema(Connection con) throws SQLException {
+        for (String ddl : USER_DDL) {
+            execSql(con, ddl);
+        }
+        for (String ddl : TASK_DDL) {
+            execSql(con, ddl);
+        }
+    }
+
 
 	// @sql-end
 
@@ -228,35 +1046,254 @@ public class SqlDb implements Db, AutoCloseable {
 		void work(Connection con) throws SQLException;
 	}
 
+	// The connection of the thread's current tx or readTx. Nested reads join
+	// either kind; nested writes join only a tx, never a read-only scope.
+	// After-commit actions of nested tx calls wait for the outer commit, and
+	// ids given to new entities are taken back if the transaction fails.
+	private static class TxScope {
+		final Connection con;
+		final boolean readOnly;
+		List<Runnable> afterCommit = null;
+		List<Entity> newIds = null;
+
+		TxScope(Connection con, boolean readOnly) {
+			super();
+			this.con = con;
+			this.readOnly = readOnly;
+		}
+	}
+
+	private TxScope writeScope() {
+		TxScope s = scope.get();
+		return s == null || s.readOnly ? null : s;
+	}
+
+	private void restoreScope(TxScope outer) {
+		if (outer == null) {
+			scope.remove();
+		} else {
+			scope.set(outer);
+		}
+	}
+
+	private void afterCommit(Runnable action) {
+		TxScope s = writeScope();
+		if (s == null) {
+			action.run();
+		} else {
+			if (s.afterCommit == null) {
+				s.afterCommit = new ArrayList<>();
+			}
+			s.afterCommit.add(action);
+		}
+	}
+
+	private void newId(Entity e) {
+		e.setId(nextId());
+		TxScope s = writeScope();
+		if (s != null) {
+			if (s.newIds == null) {
+				s.newIds = new ArrayList<>();
+			}
+			s.newIds.add(e);
+		}
+	}
+
+	// Inside a transaction results may include uncommitted writes, so the
+	// result cache is neither read nor filled there.
+	private <T> T cached(String key, Supplier<T> loader, String... tables) {
+		if (writeScope() != null) {
+			return loader.get();
+		}
+		return resultCache.get(key, loader, tables);
+	}
+
 	private void tx(String name, Worker worker) {
-		try (Connection con = pool.getConnection()) {
+		tx(name, txAttempts, worker);
+	}
+
+	private void tx(String name, int attempts, Worker worker) {
+		TxScope outer = writeScope();
+		if (outer != null) {
 			try {
-				long t1 = System.nanoTime();
-				con.setAutoCommit(false);
-				worker.work(con);
-				if (logger.isTraceEnabled()) {
-					logger.trace("commit");
+				worker.work(outer.con);
+			} catch (SQLException wex) {
+				throw new SqlFailure(wex);
+			}
+			return;
+		}
+		SqlMetrics.Tx m = metrics.tx(name);
+		for (int attempt = 1;; attempt++) {
+			try {
+				tx(name, m, worker);
+				return;
+			} catch (SqlFailure f) {
+				if (attempt >= attempts || !isRetryable(f)) {
+					throw f;
 				}
-				con.commit();
-				long t2 = System.nanoTime();
-				long millis = (t2 - t1) / 1_000_000;
-				if (millis >= 2000) {
-					logger.info("tx '" + name + "' took long: " + millis + " ms");
+				m.retries.incrementAndGet();
+				backoff(attempt);
+			}
+		}
+	}
+
+	private void tx(String name, SqlMetrics.Tx m, Worker worker) {
+		metrics.enter();
+		long t0 = System.nanoTime();
+		Connection con;
+		try {
+			con = pool.getConnection();
+		} catch (SQLException cex) {
+			metrics.exit();
+			logger.info("cannot get db connection: " + cex, cex);
+			throw new SqlFailure(cex);
+		}
+		long t1 = System.nanoTime();
+		m.acquire.record(t1 - t0);
+		TxScope outer = scope.get(); // a readTx scope, if any
+		TxScope s = new TxScope(con, false);
+		scope.set(s);
+		try {
+			con.setAutoCommit(false);
+			worker.work(con);
+			if (logger.isTraceEnabled()) {
+				logger.trace("commit");
+			}
+			con.commit();
+			restoreScope(outer);
+			resultCache.committed(con);
+			m.commits.incrementAndGet();
+			if (s.afterCommit != null) {
+				for (Runnable action : s.afterCommit) {
+					action.run();
 				}
-			} catch (SQLException wex) {
-				logger.info("tx error: " + wex, wex);
-				try {
-					logger.info("rollback");
-					con.rollback();
-				} catch (SQLException rex) {
-					logger.info("cannot rollback a tx: " + rex, rex);
+			}
+			long t2 = System.nanoTime();
+			long millis = (t2 - t1) / 1_000_000;
+			if (millis >= 2000) {
+				logger.info("tx '" + name + "' took long: " + millis + " ms");
+			}
+		} catch (SQLException wex) {
+			logger.info("tx error: " + wex, wex);
+			rollback(con);
+			resultCache.rolledBack(con);
+			takeBackIds(s);
+			m.rollbacks.incrementAndGet();
+			throw new SqlFailure(wex);
+		} catch (RuntimeException wex) {
+			rollback(con);
+			resultCache.rolledBack(con);
+			takeBackIds(s);
+			m.rollbacks.incrementAndGet();
+			throw wex;
+		} finally {
+			restoreScope(outer);
+			m.work.record(System.nanoTime() - t1);
+			pool.release(con);
+			metrics.exit();
+		}
+	}
+
+	private void takeBackIds(TxScope s) {
+		if (s.newIds != null) {
+			for (Entity e : s.newIds) {
+				e.setId(null);
+			}
+		}
+	}
+
+	// Serialization failures and deadlocks (SQLSTATE 40001, or 40P01 on some
+	// databases) abort a transaction that may well succeed when run again.
+	private static boolean isRetryable(Throwable t) {
+		for (; t != null; t = t.getCause()) {
+			if (t instanceof SQLException) {
+				String state = ((SQLException) t).getSQLState();
+				if ("40001".equals(state) || "40P01".equals(state)) {
+					return true;
 				}
+			}
+		}
+		return false;
+	}
+
+	// Full jitter, so transactions that collided once do not collide again.
+	private void backoff(int attempt) {
+		long cap = Math.min(TX_MAX_BACKOFF_MICROS, TX_BACKOFF_MICROS << Math.min(attempt - 1, 20));
+		long micros = ThreadLocalRandom.current().nextLong(cap + 1);
+		try {
+			Thread.sleep(micros / 1000, (int) (micros % 1000) * 1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SqlFailure("interrupted while waiting to retry a tx", e);
+		}
+	}
+
+	// Runs worker on a read-only autocommit connection from the read pool:
+	// there is nothing to commit or roll back. Inside a transaction the worker
+	// joins its connection instead, so it sees that transaction's writes.
+	// Reads nested in worker, say from a forEach consumer, join this
+	// connection, so they cannot starve the read pool.
+	private void readTx(String name, Worker worker) {
+		TxScope outer = scope.get();
+		if (outer != null) {
+			try {
+				worker.work(outer.con);
+			} catch (SQLException wex) {
 				throw new SqlFailure(wex);
 			}
+			return;
+		}
+		SqlMetrics.Tx m = metrics.tx(name);
+		metrics.enter();
+		long t0 = System.nanoTime();
+		Connection con;
+		try {
+			con = readPool.getConnection();
 		} catch (SQLException cex) {
+			metrics.exit();
 			logger.info("cannot get db connection: " + cex, cex);
 			throw new SqlFailure(cex);
 		}
+		long t1 = System.nanoTime();
+		m.acquire.record(t1 - t0);
+		scope.set(new TxScope(con, true));
+		try {
+			worker.work(con);
+			m.reads.incrementAndGet();
+		} catch (SQLException wex) {
+			logger.info("read error: " + wex, wex);
+			m.failedReads.incrementAndGet();
+			throw new SqlFailure(wex);
+		} catch (RuntimeException wex) {
+			m.failedReads.incrementAndGet();
+			throw wex;
+		} finally {
+			scope.remove();
+			m.work.record(System.nanoTime() - t1);
+			readPool.release(con);
+			metrics.exit();
+		}
+	}
+
+	private void rollback(Connection con) {
+		try {
+			logger.info("rollback");
+			con.rollback();
+		} catch (SQLException rex) {
+			logger.info("cannot rollback a tx: " + rex, rex);
+		}
+	}
+
+	private void changed(Connection con, String table) {
+		resultCache.changed(con, table);
+	}
+
+	private PreparedStatement prepare(Connection con, String sql) throws SQLException {
+		SqlStatementCache cache = pool.statementCache(con);
+		if (cache == null) {
+			cache = readPool.statementCache(con);
+		}
+		return cache.prepare(sql);
 	}
 
 	@FunctionalInterface
@@ -265,14 +1302,113 @@ public class SqlDb implements Db, AutoCloseable {
 	}
 
 	private void query(Connection con, String sql, Reader r) throws SQLException {
+		query(con, sql, NO_PARAMS, r);
+	}
+
+	private void query(Connection con, String sql, SqlParams params, Reader r) throws SQLException {
+		query(con, sql, pst -> params.writeTo(pst, new SqlIndex()), r);
+	}
+
+	private void query(Connection con, String sql, Writer w, Reader r) throws SQLException {
 		if (logger.isTraceEnabled()) {
 			logger.trace(sql);
 		}
-		try (PreparedStatement pst = con.prepareStatement(sql)) {
-			try (ResultSet rst = pst.executeQuery()) {
-				while (rst.next()) {
-					r.read(rst);
+		PreparedStatement pst = prepare(con, sql);
+		long t0 = System.nanoTime();
+		w.write(pst);
+		long t1 = System.nanoTime();
+		try (ResultSet rst = pst.executeQuery()) {
+			read(con, sql, rst, null, r, t1 - t0, System.nanoTime() - t1);
+		}
+	}
+
+	// Reads all rows, timing rst.next() (fetch) apart from r.read() (decode).
+	// Time that r spent in a consumer, summed up in consumed[0], is taken
+	// out of decode. Without profiling the rows are read untimed.
+	private void read(Connection con, String sql, ResultSet rst, long[] consumed, Reader r, long bind, long execute)
+			throws SQLException {
+		if (!profiler.isEnabled()) {
+			while (rst.next()) {
+				r.read(rst);
+			}
+			return;
+		}
+		long t0 = System.nanoTime();
+		long decode = 0;
+		long rows = 0;
+		while (rst.next()) {
+			long d0 = System.nanoTime();
+			r.read(rst);
+			decode += System.nanoTime() - d0;
+			rows++;
+		}
+		long fetch = System.nanoTime() - t0 - decode;
+		long consume = consumed == null ? 0 : consumed[0];
+		profiler.record(con, sql, bind, execute, fetch, decode - consume, consume, rows);
+	}
+
+	// Adds the time spent in consumer to nanos[0] while profiling.
+	private <E> Consumer<E> timed(Consumer<E> consumer, long[] nanos) {
+		if (!profiler.isEnabled()) {
+			return consumer;
+		}
+		return e -> {
+			long t0 = System.nanoTime();
+			consumer.accept(e);
+			nanos[0] += System.nanoTime() - t0;
+		};
+	}
+
+	// Chunks of fewer ids are padded by repeating the last id.
+	private void queryIn(Connection con, String[] sqls, Collection<String> ids, Reader r) throws SQLException {
+		List<String> list = new ArrayList<>(ids);
+		for (int from = 0; from < list.size(); from += IN_LIST_SIZE) {
+			int first = from;
+			int last = Math.min(from + IN_LIST_SIZE, list.size()) - 1;
+			int k = 0;
+			while (IN_LIST_SIZES[k] < last - first + 1) {
+				k++;
+			}
+			int size = IN_LIST_SIZES[k];
+			query(con, sqls[k], pst -> {
+				for (int i = 0; i < size; i++) {
+					pst.setString(i + 1, list.get(Math.min(first + i, last)));
 				}
+			}, r);
+		}
+	}
+
+	// One statement text per IN_LIST_SIZES entry, built once per query.
+	private static String[] inLists(String sqlHead, String sqlTail) {
+		String[] sqls = new String[IN_LIST_PLACERS.length];
+		for (int k = 0; k < sqls.length; k++) {
+			sqls[k] = sqlHead + IN_LIST_PLACERS[k] + sqlTail;
+		}
+		return sqls;
+	}
+
+	private static String[] placers(int[] sizes) {
+		String[] placers = new String[sizes.length];
+		for (int k = 0; k < sizes.length; k++) {
+			StringJoiner sj = new StringJoiner(",", "(", ")");
+			for (int i = 0; i < sizes[k]; i++) {
+				sj.add("?");
+			}
+			placers[k] = sj.toString();
+		}
+		return placers;
+	}
+
+	private void cursor(Connection con, String sql, long[] consumed, Reader r) throws SQLException {
+		if (logger.isTraceEnabled()) {
+			logger.trace(sql + " (cursor, fetchSize " + fetchSize + ")");
+		}
+		try (PreparedStatement pst = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+			pst.setFetchSize(fetchSize);
+			long t0 = System.nanoTime();
+			try (ResultSet rst = pst.executeQuery()) {
+				rst.setFetchDirection(ResultSet.FETCH_FORWARD);
+				read(con, sql, rst, consumed, r, 0, System.nanoTime() - t0);
 			}
 		}
 	}
@@ -282,28 +1418,108 @@ public class SqlDb implements Db, AutoCloseable {
 		void write(PreparedStatement pst) throws SQLException;
 	}
 
+	private static final Writer NO_PARAMS = pst -> {
+	};
+
 	private void update(Connection con, String sql, Writer w) throws SQLException {
 		if (logger.isTraceEnabled()) {
 			logger.trace(sql);
 		}
-		try (PreparedStatement pst = con.prepareStatement(sql)) {
-			w.write(pst);
-			pst.executeUpdate();
+		PreparedStatement pst = prepare(con, sql);
+		long t0 = System.nanoTime();
+		w.write(pst);
+		long t1 = System.nanoTime();
+		int rows = pst.executeUpdate();
+		profiler.record(con, sql, t1 - t0, System.nanoTime() - t1, 0, 0, rows);
+	}
+
+	@FunctionalInterface
+	private static interface BatchWriter<E> {
+		void write(PreparedStatement pst, E e) throws SQLException;
+	}
+
+	private <E> void batch(Connection con, String sql, List<E> list, BatchWriter<E> w) throws SQLException {
+		if (list.isEmpty()) {
+			return;
+		}
+		if (logger.isTraceEnabled()) {
+			logger.trace(sql + " (batch of " + list.size() + ")");
+		}
+		PreparedStatement pst = prepare(con, sql);
+		pst.clearBatch();
+		boolean profiling = profiler.isEnabled();
+		long bind = 0;
+		long execute = 0;
+		long rows = 0;
+		int pending = 0;
+		for (E e : list) {
+			long t0 = profiling ? System.nanoTime() : 0;
+			w.write(pst, e);
+			pst.addBatch();
+			if (profiling) {
+				bind += System.nanoTime() - t0;
+			}
+			pending++;
+			if (pending == batchSize) {
+				long t1 = System.nanoTime();
+				rows += updateCount(pst.executeBatch());
+				execute += System.nanoTime() - t1;
+				pending = 0;
+			}
+		}
+		if (pending > 0) {
+			long t1 = System.nanoTime();
+			rows += updateCount(pst.executeBatch());
+			execute += System.nanoTime() - t1;
 		}
+		profiler.record(con, sql, bind, execute, 0, 0, rows);
 	}
 
-	private String toVarchar(TaskStatus status) {
-		if (status == null) {
-			return null;
+	private long updateCount(int[] counts) {
+		long sum = 0;
+		for (int count : counts) {
+			if (count > 0) {
+				sum += count;
+			}
 		}
-		return status.name();
+		return sum;
 	}
 
-	private TaskStatus toTaskStatus(String name) {
-		if (name == null) {
-			return null;
+	@FunctionalInterface
+	private static interface RowsWriter<E> {
+		void write(PreparedStatement pst, E e, SqlIndex si) throws SQLException;
+	}
+
+	// One MERGE must not hold an id twice, so only the last entity with a
+	// given id is kept. Entities without id are all kept.
+	private static <E extends Entity> List<E> lastPerId(Collection<E> entities) {
+		List<E> list = new ArrayList<>(entities);
+		Set<String> ids = new HashSet<>();
+		List<E> kept = new ArrayList<>(list.size());
+		for (int i = list.size() - 1; i >= 0; i--) {
+			E e = list.get(i);
+			if (e.getId() == null || ids.add(e.getId())) {
+				kept.add(e);
+			}
+		}
+		Collections.reverse(kept);
+		return kept;
+	}
+
+	private <E> void upsert(Connection con, List<E> list, IntFunction<String> sql, RowsWriter<E> w) throws SQLException {
+		int from = 0;
+		for (int size : UPSERT_SIZES) {
+			while (list.size() - from >= size) {
+				List<E> rows = list.subList(from, from + size);
+				update(con, sql.apply(size), pst -> {
+					SqlIndex si = new SqlIndex();
+					for (E e : rows) {
+						w.write(pst, e, si);
+					}
+				});
+				from += size;
+			}
 		}
-		return TaskStatus.valueOf(name);
 	}
 
 	private Timestamp toTimestamp(Instant instant) {
@@ -320,8 +1536,8 @@ public class SqlDb implements Db, AutoCloseable {
 		return timestamp.toInstant();
 	}
 
-	private String uuid() {
-		return UUID.randomUUID().toString().replace("-", "");
+	private String nextId() {
+		return idGenerator.nextId();
 	}
 
 }
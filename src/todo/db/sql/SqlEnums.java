@@ -0,0 +1,56 @@
+package todo.db.sql;
+
+import java.lang.reflect.Array;
+
+// Enum columns as the generated code and SqlMapper store them, by ordinal
+// or by code. The code of a constant is the first char of its name. Both read through these
+// methods, so a bad column value fails the same way, naming the column.
+public final class SqlEnums {
+
+	private SqlEnums() {
+		super();
+	}
+
+	// Indexed by code char; each constant needs its own ascii code.
+	@SuppressWarnings("unchecked")
+	public static <E> E[] byCode(Class<E> type) {
+		E[] byCode = (E[]) Array.newInstance(type, 128);
+		for (E value : type.getEnumConstants()) {
+			char c = ((Enum<?>) value).name().charAt(0);
+			if (c >= 128 || byCode[c] != null) {
+				throw new IllegalStateException(type.getSimpleName() + "." + value + " has no unique ascii code");
+			}
+			byCode[c] = value;
+		}
+		return byCode;
+	}
+
+	// Indexed by ordinal.
+	public static String[] codes(Class<?> type) {
+		Object[] values = type.getEnumConstants();
+		String[] codes = new String[values.length];
+		for (Object value : values) {
+			codes[((Enum<?>) value).ordinal()] = String.valueOf(((Enum<?>) value).name().charAt(0));
+		}
+		return codes;
+	}
+
+	public static <E> E ofOrdinal(E[] values, String column, short ordinal) {
+		if (ordinal < 0 || ordinal >= values.length) {
+			throw new IllegalStateException(column + ": " + ordinal + " is not a " + values.getClass().getComponentType().getSimpleName() + " ordinal");
+		}
+		return values[ordinal];
+	}
+
+	public static <E> E ofCode(E[] byCode, String column, String code) {
+		if (code == null) {
+			return null;
+		}
+		E value = code.length() == 1 && code.charAt(0) < byCode.length ? byCode[code.charAt(0)] : null;
+		if (value == null) {
+			throw new IllegalStateException(column + ": '" + code + "' is not a " + byCode.getClass().getComponentType().getSimpleName() + " code");
+		}
+		return value;
+	}
+
+}
@@ -0,0 +1,136 @@
+package todo.db.sql;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Coalesces concurrent writes. Callers queue items, a single writer thread
+// takes up to maxItems of them, waiting at most maxWaitMicros for more after
+// the first, and hands them to the batch consumer in one go. If the batch
+// fails, each item is retried alone so one bad item fails only its caller.
+public class SqlGroupCommit<E> implements AutoCloseable {
+
+	private static class Item<E> {
+		final E e;
+		final CompletableFuture<Void> done = new CompletableFuture<>();
+
+		Item(E e) {
+			super();
+			this.e = e;
+		}
+	}
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+	private final LinkedBlockingQueue<Item<E>> queue = new LinkedBlockingQueue<>();
+	private final int maxItems;
+	private final long maxWaitNanos;
+	private final Consumer<List<E>> batch;
+	private final Consumer<E> single;
+	private final Thread writer;
+	private volatile boolean closed;
+
+	public SqlGroupCommit(String name, int maxItems, long maxWaitMicros, Consumer<List<E>> batch, Consumer<E> single) {
+		super();
+		if (maxItems < 1) {
+			throw new IllegalArgumentException("maxItems must be >= 1 but was " + maxItems);
+		}
+		if (maxWaitMicros < 0) {
+			throw new IllegalArgumentException("maxWaitMicros must be >= 0 but was " + maxWaitMicros);
+		}
+		this.maxItems = maxItems;
+		this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+		this.batch = batch;
+		this.single = single;
+		this.writer = new Thread(this::drain, name);
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	public CompletableFuture<Void> submit(E e) {
+		Item<E> item = new Item<>(e);
+		queue.add(item);
+		if (closed && queue.remove(item)) {
+			item.done.completeExceptionally(new IllegalStateException("group commit is closed"));
+		}
+		return item.done;
+	}
+
+	// Blocks until the item is committed, rethrows its failure.
+	public void save(E e) {
+		try {
+			submit(e).join();
+		} catch (CompletionException cex) {
+			if (cex.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) cex.getCause();
+			}
+			throw cex;
+		}
+	}
+
+	private void drain() {
+		List<Item<E>> items = new ArrayList<>(maxItems);
+		while (!closed || !queue.isEmpty()) {
+			try {
+				Item<E> item = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (item == null) {
+					continue;
+				}
+				items.add(item);
+				long deadline = System.nanoTime() + maxWaitNanos;
+				while (items.size() < maxItems && (item = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) != null) {
+					items.add(item);
+				}
+				commit(items);
+			} catch (InterruptedException iex) {
+				break;
+			} finally {
+				items.clear();
+			}
+		}
+	}
+
+	private void commit(List<Item<E>> items) {
+		if (items.size() > 1) {
+			List<E> es = new ArrayList<>(items.size());
+			for (Item<E> item : items) {
+				es.add(item.e);
+			}
+			try {
+				batch.accept(es);
+				for (Item<E> item : items) {
+					item.done.complete(null);
+				}
+				return;
+			} catch (RuntimeException ex) {
+				logger.info("group of " + items.size() + " failed, retrying one by one: " + ex);
+			}
+		}
+		for (Item<E> item : items) {
+			try {
+				single.accept(item.e);
+				item.done.complete(null);
+			} catch (RuntimeException ex) {
+				item.done.completeExceptionally(ex);
+			}
+		}
+	}
+
+	// Writes what is queued, then stops the writer thread.
+	@Override
+	public void close() {
+		closed = true;
+		try {
+			writer.join();
+		} catch (InterruptedException iex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -0,0 +1,107 @@
+package todo.db.sql;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Lock-free log-linear histogram of non-negative longs (nanoseconds). Each
+// power of two is split into 8 buckets, so a bucket is at most 12.5% wide.
+// record() does not allocate.
+public class SqlHistogram {
+
+	private static final int SUB_BITS = 3;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_COUNT;
+
+	public static class Snapshot {
+		private final long[] counts;
+		public final long count;
+		public final long sum;
+		public final long max;
+
+		Snapshot(long[] counts, long sum, long max) {
+			super();
+			this.counts = counts;
+			long count = 0;
+			for (long c : counts) {
+				count += c;
+			}
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		public long mean() {
+			return count == 0 ? 0 : sum / count;
+		}
+
+		// Upper bound of the bucket holding the given percentile (0..100).
+		public long percentile(double p) {
+			if (count == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(count * p / 100.0));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					return Math.min(upperBound(i), max);
+				}
+			}
+			return max;
+		}
+
+		@Override
+		public String toString() {
+			return "count=" + count + ", mean=" + micros(mean()) + ", p50=" + micros(percentile(50)) + ", p99="
+					+ micros(percentile(99)) + ", max=" + micros(max);
+		}
+
+		private static String micros(long nanos) {
+			return (nanos / 1000) + "us";
+		}
+	}
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(index(value));
+		sum.addAndGet(value);
+		long m;
+		while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+			// retry
+		}
+	}
+
+	public Snapshot snapshot() {
+		long[] copy = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = counts.get(i);
+		}
+		return new Snapshot(copy, sum.get(), max.get());
+	}
+
+	static int index(long value) {
+		if (value < SUB_COUNT) {
+			return (int) value;
+		}
+		int exp = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+		return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+	}
+
+	static long upperBound(int index) {
+		if (index < SUB_COUNT) {
+			return index;
+		}
+		int exp = index / SUB_COUNT + SUB_BITS - 1;
+		long sub = index % SUB_COUNT;
+		long lower = (SUB_COUNT + sub) << (exp - SUB_BITS);
+		return lower + (1L << (exp - SUB_BITS)) - 1;
+	}
+
+}
@@ -0,0 +1,12 @@
+package todo.db.sql;
+
+import java.util.UUID;
+
+@FunctionalInterface
+public interface SqlIdGenerator {
+
+	public static final SqlIdGenerator RANDOM_UUID = () -> UUID.randomUUID().toString().replace("-", "");
+
+	String nextId();
+
+}
@@ -1,42 +1,81 @@
 package todo.db.sql;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
 
 import todo.db.Entity;
+import todo.db.KeyIndex;
 
 public class SqlList<E extends Entity> {
 
-	private final ArrayList<E> list = new ArrayList<>();
-	private final HashMap<String, E> map = new HashMap<>();
+	private static final int DEFAULT_EXPECTED_SIZE = 16;
+
+	private final KeyIndex index; // by id
+	private Entity[] entities; // parallel to index
+
+	public SqlList() {
+		this(DEFAULT_EXPECTED_SIZE);
+	}
+
+	public SqlList(int expectedSize) {
+		index = new KeyIndex(expectedSize);
+		entities = new Entity[Math.max(expectedSize, 4)];
+	}
 
 	public void add(E e) {
 		if (e != null && e.getId() != null) {
-			if (!map.containsKey(e.getId())) {
-				list.add(e);
-				map.put(e.getId(), e);
+			int size = index.size();
+			if (index.add(e.getId()) == size) {
+				if (size == entities.length) {
+					entities = Arrays.copyOf(entities, size + (size >> 1) + 1);
+				}
+				entities[size] = e;
 			}
 		}
 	}
 
+	@SuppressWarnings("unchecked")
 	public E find(String id) {
-		return map.get(id);
+		if (id == null) {
+			return null;
+		}
+		int i = index.indexOf(id);
+		return i < 0 ? null : (E) entities[i];
 	}
 
 	public E need(String id) {
-		E e = map.get(id);
+		E e = find(id);
 		if (e == null) {
 			throw new NullPointerException("entity id '" + id + "' not found in sql list");
 		}
 		return e;
 	}
 
+	public int size() {
+		return index.size();
+	}
+
 	public List<E> list() {
-		return list;
+		return new AbstractList<E>() {
+			@Override
+			@SuppressWarnings("unchecked")
+			public E get(int index) {
+				if (index < 0 || index >= size()) {
+					throw new IndexOutOfBoundsException("index " + index + ", size " + size());
+				}
+				return (E) entities[index];
+			}
+
+			@Override
+			public int size() {
+				return index.size();
+			}
+		};
 	}
 
+	@SuppressWarnings("unchecked")
 	public E firstOrNull() {
-		return list.isEmpty() ? null : list.get(0);
+		return index.size() == 0 ? null : (E) entities[0];
 	}
-}
\ No newline at end of file
+}
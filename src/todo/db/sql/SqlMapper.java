@@ -0,0 +1,408 @@
+package todo.db.sql;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringJoiner;
+
+import todo.db.Entity;
+
+// Runtime counterpart of the code SqlGen generates: reads and writes the
+// fields of an entity class without a regeneration step. Column access is
+// composed into one MethodHandle per direction, which is then bound as a
+// constant into a small hidden class, so the JIT can inline it like
+// hand-written code.
+//
+// Fields are given in column order, like an @sql-fields block. An enum
+// field may carry a mode suffix, "status:ordinal" or "status:code".
+public final class SqlMapper<E extends Entity> {
+
+	@FunctionalInterface
+	public static interface RowReader {
+		Object read(ResultSet rst, SqlIndex si) throws SQLException;
+	}
+
+	@FunctionalInterface
+	public static interface RowWriter {
+		void write(PreparedStatement pst, Object entity, SqlIndex si) throws SQLException;
+	}
+
+	private static final Lookup LOOKUP = MethodHandles.lookup();
+
+	private final Class<E> type;
+	private final String table;
+	private final String cols;
+	private final String insertSql;
+	private final String updateSql;
+	private final String selectSql;
+	private final RowReader reader;
+	private final RowWriter writer;
+
+	public static <E extends Entity> SqlMapper<E> of(Class<E> type, String table, String... fields) {
+		try {
+			return new SqlMapper<>(type, table, fields);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalArgumentException("cannot map " + type.getName() + ": " + e, e);
+		}
+	}
+
+	private SqlMapper(Class<E> type, String table, String[] specs) throws ReflectiveOperationException {
+		super();
+		this.type = type;
+		this.table = table;
+		List<String> names = new ArrayList<>();
+		List<Class<?>> javaTypes = new ArrayList<>();
+		List<String> modes = new ArrayList<>();
+		for (String spec : specs) {
+			int i = spec.indexOf(':');
+			String name = i < 0 ? spec : spec.substring(0, i);
+			names.add(name);
+			javaTypes.add(type.getDeclaredField(name).getType());
+			modes.add(i < 0 ? null : spec.substring(i + 1));
+		}
+		StringJoiner cols = new StringJoiner(",");
+		StringJoiner aliasCols = new StringJoiner(",");
+		StringJoiner placers = new StringJoiner(",");
+		StringJoiner sets = new StringJoiner(",");
+		cols.add("id");
+		aliasCols.add(table + ".id");
+		placers.add("?");
+		for (String name : names) {
+			cols.add(name);
+			aliasCols.add(table + "." + name);
+			placers.add("?");
+			sets.add(name + "=?");
+		}
+		this.cols = cols.toString();
+		this.insertSql = "INSERT INTO " + table + "(" + cols + ") VALUES(" + placers + ")";
+		this.updateSql = "UPDATE " + table + " SET " + sets + " WHERE id=?";
+		this.selectSql = "SELECT " + aliasCols + " FROM " + table;
+		this.reader = (RowReader) spin(RowReader.class, "read", readHandle(names, javaTypes, modes));
+		this.writer = (RowWriter) spin(RowWriter.class, "write", writeHandle(names, javaTypes, modes));
+	}
+
+	public Class<E> getType() {
+		return type;
+	}
+
+	public String getTable() {
+		return table;
+	}
+
+	public String getCols() {
+		return cols;
+	}
+
+	public String getInsertSql() {
+		return insertSql;
+	}
+
+	public String getUpdateSql() {
+		return updateSql;
+	}
+
+	public String getSelectSql() {
+		return selectSql;
+	}
+
+	@SuppressWarnings("unchecked")
+	public E read(ResultSet rst, SqlIndex si) throws SQLException {
+		return (E) reader.read(rst, si);
+	}
+
+	public void write(PreparedStatement pst, E e, SqlIndex si) throws SQLException {
+		writer.write(pst, e, si);
+	}
+
+	// (ResultSet, SqlIndex) -> E, reading id and then every field in order
+	private MethodHandle readHandle(List<String> names, List<Class<?>> javaTypes, List<String> modes) throws ReflectiveOperationException {
+		List<Class<?>> params = new ArrayList<>();
+		params.add(String.class);
+		params.addAll(javaTypes);
+		MethodHandle h = LOOKUP.findConstructor(type, MethodType.methodType(void.class, params));
+		h = MethodHandles.dropArguments(h, params.size(), ResultSet.class, SqlIndex.class);
+		// fold from the last column to the first, so the first column is read first
+		for (int i = params.size() - 1; i >= 0; i--) {
+			MethodHandle column = i == 0 ? columnReader(String.class, null, table + ".id")
+					: columnReader(javaTypes.get(i - 1), modes.get(i - 1), table + "." + names.get(i - 1));
+			h = MethodHandles.foldArguments(h, i, column);
+		}
+		return h.asType(MethodType.methodType(Object.class, ResultSet.class, SqlIndex.class));
+	}
+
+	// (PreparedStatement, E, SqlIndex) -> void, binding every field in order
+	private MethodHandle writeHandle(List<String> names, List<Class<?>> javaTypes, List<String> modes) throws ReflectiveOperationException {
+		MethodType entityType = MethodType.methodType(void.class, PreparedStatement.class, type, SqlIndex.class);
+		MethodHandle h = MethodHandles.empty(entityType);
+		for (int i = names.size() - 1; i >= 0; i--) {
+			Class<?> javaType = javaTypes.get(i);
+			String prefix = javaType == boolean.class ? "is" : "get";
+			String name = names.get(i);
+			MethodHandle getter = LOOKUP.findVirtual(type, prefix + name.substring(0, 1).toUpperCase() + name.substring(1), MethodType.methodType(javaType));
+			MethodHandle column = MethodHandles.filterArguments(columnWriter(javaType, modes.get(i)), 2, getter);
+			column = MethodHandles.permuteArguments(column, entityType, 0, 2, 1);
+			h = MethodHandles.foldArguments(h, column);
+		}
+		return h.asType(MethodType.methodType(void.class, PreparedStatement.class, Object.class, SqlIndex.class));
+	}
+
+	// (ResultSet, SqlIndex) -> javaType
+	private static MethodHandle columnReader(Class<?> javaType, String mode, String column) throws ReflectiveOperationException {
+		MethodType mt = MethodType.methodType(javaType, ResultSet.class, SqlIndex.class);
+		if (javaType == String.class) {
+			return LOOKUP.findStatic(SqlMapper.class, "readString", mt);
+		} else if (javaType == int.class) {
+			return LOOKUP.findStatic(SqlMapper.class, "readInt", mt);
+		} else if (javaType == boolean.class) {
+			return LOOKUP.findStatic(SqlMapper.class, "readBoolean", mt);
+		} else if (javaType == Instant.class) {
+			return LOOKUP.findStatic(SqlMapper.class, "readInstant", mt);
+		} else if (javaType.isEnum()) {
+			MethodType et = MethodType.methodType(Enum.class, Enum[].class, String.class, ResultSet.class, SqlIndex.class);
+			Enum<?>[] values = (Enum<?>[]) javaType.getEnumConstants();
+			MethodHandle h;
+			if ("ordinal".equals(mode)) {
+				h = MethodHandles.insertArguments(LOOKUP.findStatic(SqlMapper.class, "readEnumOrdinal", et), 0, values, column);
+			} else if ("code".equals(mode)) {
+				h = MethodHandles.insertArguments(LOOKUP.findStatic(SqlMapper.class, "readEnumCode", et), 0, SqlEnums.byCode(javaType), column);
+			} else {
+				h = MethodHandles.insertArguments(LOOKUP.findStatic(SqlMapper.class, "readEnumName", MethodType.methodType(Enum.class, Class.class, ResultSet.class, SqlIndex.class)), 0, javaType);
+			}
+			return h.asType(mt);
+		}
+		throw new IllegalArgumentException("unsupported field type " + javaType.getName());
+	}
+
+	// (PreparedStatement, SqlIndex, javaType) -> void
+	private static MethodHandle columnWriter(Class<?> javaType, String mode) throws ReflectiveOperationException {
+		MethodType mt = MethodType.methodType(void.class, PreparedStatement.class, SqlIndex.class, javaType);
+		if (javaType == String.class) {
+			return LOOKUP.findStatic(SqlMapper.class, "writeString", mt);
+		} else if (javaType == int.class) {
+			return LOOKUP.findStatic(SqlMapper.class, "writeInt", mt);
+		} else if (javaType == boolean.class) {
+			return LOOKUP.findStatic(SqlMapper.class, "writeBoolean", mt);
+		} else if (javaType == Instant.class) {
+			return LOOKUP.findStatic(SqlMapper.class, "writeInstant", mt);
+		} else if (javaType.isEnum()) {
+			MethodType et = MethodType.methodType(void.class, PreparedStatement.class, SqlIndex.class, Enum.class);
+			MethodHandle h;
+			if ("ordinal".equals(mode)) {
+				h = LOOKUP.findStatic(SqlMapper.class, "writeEnumOrdinal", et);
+			} else if ("code".equals(mode)) {
+				String[] codes = SqlEnums.codes(javaType);
+				MethodType ct = MethodType.methodType(void.class, String[].class, PreparedStatement.class, SqlIndex.class, Enum.class);
+				h = MethodHandles.insertArguments(LOOKUP.findStatic(SqlMapper.class, "writeEnumCode", ct), 0, (Object) codes);
+			} else {
+				h = LOOKUP.findStatic(SqlMapper.class, "writeEnumName", et);
+			}
+			return h.asType(mt);
+		}
+		throw new IllegalArgumentException("unsupported field type " + javaType.getName());
+	}
+
+	static String readString(ResultSet rst, SqlIndex si) throws SQLException {
+		return rst.getString(si.next());
+	}
+
+	static int readInt(ResultSet rst, SqlIndex si) throws SQLException {
+		return rst.getInt(si.next());
+	}
+
+	static boolean readBoolean(ResultSet rst, SqlIndex si) throws SQLException {
+		return rst.getBoolean(si.next());
+	}
+
+	static Instant readInstant(ResultSet rst, SqlIndex si) throws SQLException {
+		Timestamp timestamp = rst.getTimestamp(si.next());
+		return timestamp == null ? null : timestamp.toInstant();
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static Enum<?> readEnumName(Class type, ResultSet rst, SqlIndex si) throws SQLException {
+		String name = rst.getString(si.next());
+		return name == null ? null : Enum.valueOf(type, name);
+	}
+
+	static Enum<?> readEnumOrdinal(Enum<?>[] values, String column, ResultSet rst, SqlIndex si) throws SQLException {
+		short ordinal = rst.getShort(si.next());
+		return rst.wasNull() ? null : SqlEnums.ofOrdinal(values, column, ordinal);
+	}
+
+	static Enum<?> readEnumCode(Enum<?>[] byCode, String column, ResultSet rst, SqlIndex si) throws SQLException {
+		return SqlEnums.ofCode(byCode, column, rst.getString(si.next()));
+	}
+
+	static void writeString(PreparedStatement pst, SqlIndex si, String value) throws SQLException {
+		pst.setString(si.next(), value);
+	}
+
+	static void writeInt(PreparedStatement pst, SqlIndex si, int value) throws SQLException {
+		pst.setInt(si.next(), value);
+	}
+
+	static void writeBoolean(PreparedStatement pst, SqlIndex si, boolean value) throws SQLException {
+		pst.setBoolean(si.next(), value);
+	}
+
+	static void writeInstant(PreparedStatement pst, SqlIndex si, Instant value) throws SQLException {
+		pst.setTimestamp(si.next(), value == null ? null : Timestamp.from(value));
+	}
+
+	static void writeEnumName(PreparedStatement pst, SqlIndex si, Enum<?> value) throws SQLException {
+		pst.setString(si.next(), value == null ? null : value.name());
+	}
+
+	static void writeEnumOrdinal(PreparedStatement pst, SqlIndex si, Enum<?> value) throws SQLException {
+		if (value == null) {
+			pst.setNull(si.next(), Types.SMALLINT);
+		} else {
+			pst.setShort(si.next(), (short) value.ordinal());
+		}
+	}
+
+	static void writeEnumCode(String[] codes, PreparedStatement pst, SqlIndex si, Enum<?> value) throws SQLException {
+		pst.setString(si.next(), value == null ? null : codes[value.ordinal()]);
+	}
+
+	// Defines a hidden class implementing iface, whose single method does
+	// nothing but 'return target.invokeExact(args)'. target is the class
+	// data of the hidden class and is loaded with a dynamic constant, so to
+	// the JIT it is a true constant and gets inlined.
+	private static Object spin(Class<?> iface, String method, MethodHandle target) {
+		try {
+			byte[] bytes = classBytes(iface, method, target.type());
+			Lookup hidden = LOOKUP.defineHiddenClassWithClassData(bytes, target, true);
+			return hidden.findConstructor(hidden.lookupClass(), MethodType.methodType(void.class)).invoke();
+		} catch (Throwable t) {
+			throw new IllegalStateException("cannot spin " + iface.getSimpleName() + ": " + t, t);
+		}
+	}
+
+	private static byte[] classBytes(Class<?> iface, String method, MethodType type) throws IOException {
+		String self = SqlMapper.class.getName().replace('.', '/') + "$Spun";
+		String desc = type.toMethodDescriptorString();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0xCAFEBABE);
+		out.writeShort(0);
+		out.writeShort(55); // java 11, the first version with dynamic constants
+		// constant pool
+		out.writeShort(31);
+		utf8(out, self); // 1
+		entry(out, 7, 1); // 2 class self
+		utf8(out, "java/lang/Object"); // 3
+		entry(out, 7, 3); // 4 class Object
+		utf8(out, iface.getName().replace('.', '/')); // 5
+		entry(out, 7, 5); // 6 class iface
+		utf8(out, "<init>"); // 7
+		utf8(out, "()V"); // 8
+		entry(out, 12, 7, 8); // 9 <init>:()V
+		entry(out, 10, 4, 9); // 10 Object.<init>
+		utf8(out, method); // 11
+		utf8(out, desc); // 12
+		utf8(out, "Code"); // 13
+		utf8(out, "java/lang/invoke/MethodHandles"); // 14
+		entry(out, 7, 14); // 15 class MethodHandles
+		utf8(out, "classData"); // 16
+		utf8(out, "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/Class;)Ljava/lang/Object;"); // 17
+		entry(out, 12, 16, 17); // 18
+		entry(out, 10, 15, 18); // 19 MethodHandles.classData
+		out.writeByte(15); // 20 REF_invokeStatic classData
+		out.writeByte(6);
+		out.writeShort(19);
+		utf8(out, "_"); // 21
+		utf8(out, "Ljava/lang/invoke/MethodHandle;"); // 22
+		entry(out, 12, 21, 22); // 23
+		entry(out, 17, 0, 23); // 24 dynamic constant, bootstrap 0
+		utf8(out, "java/lang/invoke/MethodHandle"); // 25
+		entry(out, 7, 25); // 26 class MethodHandle
+		utf8(out, "invokeExact"); // 27
+		entry(out, 12, 27, 12); // 28
+		entry(out, 10, 26, 28); // 29 MethodHandle.invokeExact
+		utf8(out, "BootstrapMethods"); // 30
+		// class
+		out.writeShort(0x0031); // public final super
+		out.writeShort(2);
+		out.writeShort(4);
+		out.writeShort(1);
+		out.writeShort(6);
+		out.writeShort(0); // fields
+		out.writeShort(2); // methods
+		// <init>
+		out.writeShort(0x0001);
+		out.writeShort(7);
+		out.writeShort(8);
+		out.writeShort(1);
+		out.writeShort(13);
+		out.writeInt(12 + 5);
+		out.writeShort(1); // max stack
+		out.writeShort(1); // max locals
+		out.writeInt(5);
+		out.writeByte(0x2a); // aload_0
+		entry(out, 0xb7, 10); // invokespecial Object.<init>
+		out.writeByte(0xb1); // return
+		out.writeShort(0);
+		out.writeShort(0);
+		// method
+		int args = type.parameterCount();
+		ByteArrayOutputStream code = new ByteArrayOutputStream();
+		DataOutputStream c = new DataOutputStream(code);
+		entry(c, 0x13, 24); // ldc_w target
+		for (int i = 1; i <= args; i++) {
+			c.writeByte(0x19); // aload i, all args are references
+			c.writeByte(i);
+		}
+		entry(c, 0xb6, 29); // invokevirtual invokeExact
+		c.writeByte(type.returnType() == void.class ? 0xb1 : 0xb0); // return or areturn
+		out.writeShort(0x0001);
+		out.writeShort(11);
+		out.writeShort(12);
+		out.writeShort(1);
+		out.writeShort(13);
+		out.writeInt(12 + code.size());
+		out.writeShort(1 + args); // max stack
+		out.writeShort(1 + args); // max locals
+		out.writeInt(code.size());
+		code.writeTo(out);
+		out.writeShort(0);
+		out.writeShort(0);
+		// attributes
+		out.writeShort(1);
+		out.writeShort(30);
+		out.writeInt(6);
+		out.writeShort(1);
+		out.writeShort(20);
+		out.writeShort(0);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static void entry(DataOutputStream out, int tag, int index) throws IOException {
+		out.writeByte(tag);
+		out.writeShort(index);
+	}
+
+	private static void entry(DataOutputStream out, int tag, int index1, int index2) throws IOException {
+		out.writeByte(tag);
+		out.writeShort(index1);
+		out.writeShort(index2);
+	}
+
+	private static void utf8(DataOutputStream out, String s) throws IOException {
+		out.writeByte(1);
+		out.writeUTF(s);
+	}
+}
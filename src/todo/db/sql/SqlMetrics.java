@@ -0,0 +1,103 @@
+package todo.db.sql;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Transaction metrics recorded by SqlDb.tx, per transaction name. Recording
+// only touches atomics, so it does not allocate once a name has been seen.
+public class SqlMetrics {
+
+	public static class TxSnapshot {
+		public final String name;
+		public final long commits;
+		public final long rollbacks;
+		public final long retries;
+		public final long reads;
+		public final long failedReads;
+		public final SqlHistogram.Snapshot acquire;
+		public final SqlHistogram.Snapshot work;
+
+		TxSnapshot(String name, long commits, long rollbacks, long retries, long reads, long failedReads,
+				SqlHistogram.Snapshot acquire, SqlHistogram.Snapshot work) {
+			super();
+			this.name = name;
+			this.commits = commits;
+			this.rollbacks = rollbacks;
+			this.retries = retries;
+			this.reads = reads;
+			this.failedReads = failedReads;
+			this.acquire = acquire;
+			this.work = work;
+		}
+
+		@Override
+		public String toString() {
+			return name + ": commits=" + commits + ", rollbacks=" + rollbacks + ", retries=" + retries + ", reads=" + reads
+					+ ", failedReads=" + failedReads + ", acquire[" + acquire + "], work[" + work + "]";
+		}
+	}
+
+	public static class Snapshot {
+		public final int inFlight;
+		public final Map<String, TxSnapshot> txs;
+
+		Snapshot(int inFlight, Map<String, TxSnapshot> txs) {
+			super();
+			this.inFlight = inFlight;
+			this.txs = Collections.unmodifiableMap(txs);
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder("inFlight=" + inFlight);
+			for (TxSnapshot tx : txs.values()) {
+				sb.append("\n").append(tx);
+			}
+			return sb.toString();
+		}
+	}
+
+	static class Tx {
+		final SqlHistogram acquire = new SqlHistogram();
+		final SqlHistogram work = new SqlHistogram();
+		final AtomicLong commits = new AtomicLong();
+		final AtomicLong rollbacks = new AtomicLong();
+		final AtomicLong retries = new AtomicLong();
+		final AtomicLong reads = new AtomicLong(); // readTx has no commit or rollback
+		final AtomicLong failedReads = new AtomicLong();
+	}
+
+	private final Map<String, Tx> txs = new ConcurrentHashMap<>();
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	Tx tx(String name) {
+		Tx tx = txs.get(name);
+		if (tx == null) {
+			tx = txs.computeIfAbsent(name, n -> new Tx());
+		}
+		return tx;
+	}
+
+	void enter() {
+		inFlight.incrementAndGet();
+	}
+
+	void exit() {
+		inFlight.decrementAndGet();
+	}
+
+	public Snapshot snapshot() {
+		Map<String, TxSnapshot> map = new TreeMap<>();
+		for (Map.Entry<String, Tx> e : txs.entrySet()) {
+			Tx tx = e.getValue();
+			map.put(e.getKey(), new TxSnapshot(e.getKey(), tx.commits.get(), tx.rollbacks.get(), tx.retries.get(),
+					tx.reads.get(), tx.failedReads.get(), tx.acquire.snapshot(), tx.work.snapshot()));
+		}
+		return new Snapshot(inFlight.get(), map);
+	}
+
+}
@@ -0,0 +1,151 @@
+package todo.db.sql;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// A fixed-size pool of physical connections. Unlike JDBCPool, it hands out
+// the same Connection object on every checkout, so the prepared statements
+// in each connection's SqlStatementCache stay usable across transactions.
+public class SqlPool implements AutoCloseable {
+
+	public static final int DEFAULT_SIZE = 8;
+	public static final int DEFAULT_STATEMENT_CACHE_SIZE = 64;
+
+	private final String url;
+	private final String user;
+	private final String password;
+	private final int size;
+	private final LinkedBlockingQueue<Connection> idle = new LinkedBlockingQueue<>();
+	private final Map<Connection, SqlStatementCache> caches = new ConcurrentHashMap<>();
+	private int loginTimeout = 5;
+	private int statementCacheSize = DEFAULT_STATEMENT_CACHE_SIZE;
+	private boolean readOnly;
+	private volatile boolean closed;
+
+	public SqlPool(String url, String user, String password, int size) {
+		super();
+		this.url = url;
+		this.user = user;
+		this.password = password;
+		this.size = size;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public void setLoginTimeout(int seconds) {
+		this.loginTimeout = seconds;
+	}
+
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+
+	// Connections opened from now on are read-only and in autocommit mode,
+	// so each query is its own READ COMMITTED transaction and needs no commit.
+	public void setReadOnly(boolean readOnly) {
+		this.readOnly = readOnly;
+	}
+
+	public int getStatementCacheSize() {
+		return statementCacheSize;
+	}
+
+	public void setStatementCacheSize(int statementCacheSize) {
+		for (SqlStatementCache cache : caches.values()) {
+			cache.setCapacity(statementCacheSize);
+		}
+		this.statementCacheSize = statementCacheSize;
+	}
+
+	public Connection getConnection() throws SQLException {
+		if (closed) {
+			throw new SQLException("pool is closed");
+		}
+		Connection con = idle.poll();
+		if (con == null) {
+			con = openIfRoom();
+		}
+		if (con == null) {
+			try {
+				con = idle.poll(loginTimeout, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("interrupted while waiting for a connection", e);
+			}
+			if (con == null) {
+				throw new SQLException("no free connection within " + loginTimeout + " s");
+			}
+		}
+		return con;
+	}
+
+	private synchronized Connection openIfRoom() throws SQLException {
+		if (caches.size() >= size) {
+			return null;
+		}
+		Connection con = DriverManager.getConnection(url, user, password);
+		if (readOnly) {
+			con.setReadOnly(true);
+			con.setAutoCommit(true);
+			con.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+		}
+		caches.put(con, new SqlStatementCache(con, statementCacheSize));
+		return con;
+	}
+
+	public void release(Connection con) {
+		if (closed || isBroken(con)) {
+			discard(con);
+		} else {
+			idle.offer(con);
+		}
+	}
+
+	private boolean isBroken(Connection con) {
+		try {
+			return con.isClosed();
+		} catch (SQLException e) {
+			return true;
+		}
+	}
+
+	private synchronized void discard(Connection con) {
+		SqlStatementCache cache = caches.remove(con);
+		try {
+			if (cache != null) {
+				cache.close();
+			}
+			con.close();
+		} catch (SQLException ignored) {
+			// connection is gone anyway
+		}
+	}
+
+	public SqlStatementCache statementCache(Connection con) {
+		return caches.get(con);
+	}
+
+	public SqlStatementCache.Stats statementCacheStats() {
+		SqlStatementCache.Stats stats = SqlStatementCache.EMPTY_STATS;
+		for (SqlStatementCache cache : caches.values()) {
+			stats = stats.plus(cache.stats());
+		}
+		return stats;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		Connection con;
+		while ((con = idle.poll()) != null) {
+			discard(con);
+		}
+	}
+}
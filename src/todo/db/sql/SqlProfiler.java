@@ -0,0 +1,187 @@
+package todo.db.sql;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Statement-level timings recorded by SqlDb, keyed by sql text. Statements
+// whose execute plus fetch time reaches the slow threshold get their
+// EXPLAIN PLAN captured into a bounded ring buffer, newest entries win.
+// Disabled by default; once MAX_STATEMENTS keys exist, further statements
+// are recorded under OTHER_STATEMENTS.
+public class SqlProfiler {
+
+	public static final long DEFAULT_SLOW_MILLIS = 500;
+	public static final int DEFAULT_SLOW_CAPACITY = 32;
+	public static final int MAX_STATEMENTS = 256;
+	public static final String OTHER_STATEMENTS = "(other statements)";
+
+	public static class StatementSnapshot {
+		public final String sql;
+		public final long calls;
+		public final long rows;
+		public final SqlHistogram.Snapshot bind;
+		public final SqlHistogram.Snapshot execute;
+		public final SqlHistogram.Snapshot fetch;
+		public final SqlHistogram.Snapshot decode;
+		public final SqlHistogram.Snapshot consume;
+
+		StatementSnapshot(String sql, long calls, long rows, SqlHistogram.Snapshot bind, SqlHistogram.Snapshot execute,
+				SqlHistogram.Snapshot fetch, SqlHistogram.Snapshot decode, SqlHistogram.Snapshot consume) {
+			super();
+			this.sql = sql;
+			this.calls = calls;
+			this.rows = rows;
+			this.bind = bind;
+			this.execute = execute;
+			this.fetch = fetch;
+			this.decode = decode;
+			this.consume = consume;
+		}
+
+		@Override
+		public String toString() {
+			return sql + ": calls=" + calls + ", rows=" + rows + ", bind[" + bind + "], execute[" + execute + "], fetch["
+					+ fetch + "], decode[" + decode + "], consume[" + consume + "]";
+		}
+	}
+
+	public static class SlowQuery {
+		public final Instant at;
+		public final String sql;
+		public final long nanos;
+		public final long rows;
+		public final String plan;
+
+		SlowQuery(Instant at, String sql, long nanos, long rows, String plan) {
+			super();
+			this.at = at;
+			this.sql = sql;
+			this.nanos = nanos;
+			this.rows = rows;
+			this.plan = plan;
+		}
+
+		@Override
+		public String toString() {
+			return at + " " + (nanos / 1_000_000) + " ms, " + rows + " rows: " + sql + "\n" + plan;
+		}
+	}
+
+	static class Stmt {
+		final SqlHistogram bind = new SqlHistogram();
+		final SqlHistogram execute = new SqlHistogram();
+		final SqlHistogram fetch = new SqlHistogram();
+		final SqlHistogram decode = new SqlHistogram();
+		final SqlHistogram consume = new SqlHistogram();
+		final AtomicLong calls = new AtomicLong();
+		final AtomicLong rows = new AtomicLong();
+	}
+
+	private final Map<String, Stmt> stmts = new ConcurrentHashMap<>();
+	private volatile boolean enabled;
+	private volatile long slowNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_SLOW_MILLIS);
+	private final SlowQuery[] slow;
+	private int slowNext;
+	private int slowCount;
+
+	public SqlProfiler(int slowCapacity) {
+		super();
+		if (slowCapacity < 1) {
+			throw new IllegalArgumentException("slowCapacity must be >= 1 but was " + slowCapacity);
+		}
+		this.slow = new SlowQuery[slowCapacity];
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public long getSlowMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(slowNanos);
+	}
+
+	public void setSlowMillis(long slowMillis) {
+		if (slowMillis < 0) {
+			throw new IllegalArgumentException("slowMillis must be >= 0 but was " + slowMillis);
+		}
+		this.slowNanos = TimeUnit.MILLISECONDS.toNanos(slowMillis);
+	}
+
+	void record(Connection con, String sql, long bind, long execute, long fetch, long decode, long rows) {
+		record(con, sql, bind, execute, fetch, decode, 0, rows);
+	}
+
+	void record(Connection con, String sql, long bind, long execute, long fetch, long decode, long consume, long rows) {
+		if (!enabled) {
+			return;
+		}
+		Stmt stmt = stmts.get(sql);
+		if (stmt == null) {
+			String key = stmts.size() < MAX_STATEMENTS ? sql : OTHER_STATEMENTS;
+			stmt = stmts.computeIfAbsent(key, s -> new Stmt());
+		}
+		stmt.calls.incrementAndGet();
+		stmt.rows.addAndGet(rows);
+		stmt.bind.record(bind);
+		stmt.execute.record(execute);
+		stmt.fetch.record(fetch);
+		stmt.decode.record(decode);
+		stmt.consume.record(consume);
+		if (execute + fetch >= slowNanos) {
+			addSlow(new SlowQuery(Instant.now(), sql, execute + fetch, rows, explain(con, sql)));
+		}
+	}
+
+	private String explain(Connection con, String sql) {
+		StringBuilder sb = new StringBuilder();
+		try (Statement st = con.createStatement(); ResultSet rst = st.executeQuery("EXPLAIN PLAN FOR " + sql)) {
+			while (rst.next()) {
+				sb.append(rst.getString(1)).append('\n');
+			}
+		} catch (SQLException ex) {
+			sb.append("cannot explain: ").append(ex);
+		}
+		return sb.toString();
+	}
+
+	private synchronized void addSlow(SlowQuery query) {
+		slow[slowNext] = query;
+		slowNext = (slowNext + 1) % slow.length;
+		slowCount = Math.min(slowCount + 1, slow.length);
+	}
+
+	// Oldest first.
+	public synchronized List<SlowQuery> slowQueries() {
+		List<SlowQuery> list = new ArrayList<>(slowCount);
+		for (int i = 0; i < slowCount; i++) {
+			list.add(slow[(slowNext - slowCount + i + slow.length) % slow.length]);
+		}
+		return list;
+	}
+
+	public Map<String, StatementSnapshot> snapshot() {
+		Map<String, StatementSnapshot> map = new TreeMap<>();
+		for (Map.Entry<String, Stmt> e : stmts.entrySet()) {
+			Stmt s = e.getValue();
+			map.put(e.getKey(), new StatementSnapshot(e.getKey(), s.calls.get(), s.rows.get(), s.bind.snapshot(),
+					s.execute.snapshot(), s.fetch.snapshot(), s.decode.snapshot(), s.consume.snapshot()));
+		}
+		return Collections.unmodifiableMap(map);
+	}
+
+}
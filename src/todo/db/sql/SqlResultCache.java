@@ -0,0 +1,141 @@
+package todo.db.sql;
+
+import java.sql.Connection;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+// LRU cache of query results. Every table has a version counter that is
+// bumped when a transaction that changed it commits; a cached result is
+// served only while the versions of the tables it was read from are
+// unchanged. Versions are taken before loading, so a result that races
+// with a commit is stored under the old versions and never served.
+public class SqlResultCache {
+
+	public static class Stats {
+		public final long hits;
+		public final long misses;
+		public final long evictions;
+		public final int size;
+
+		Stats(long hits, long misses, long evictions, int size) {
+			super();
+			this.hits = hits;
+			this.misses = misses;
+			this.evictions = evictions;
+			this.size = size;
+		}
+
+		@Override
+		public String toString() {
+			return "hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + ", size=" + size;
+		}
+	}
+
+	private static class Entry {
+		final long[] versions;
+		final Object value;
+
+		Entry(long[] versions, Object value) {
+			super();
+			this.versions = versions;
+			this.value = value;
+		}
+	}
+
+	private final Map<String, AtomicLong> versions = new ConcurrentHashMap<>();
+	private final Map<Connection, Set<String>> pending = new ConcurrentHashMap<>();
+	private final LinkedHashMap<String, Entry> map = new LinkedHashMap<>(16, 0.75f, true);
+	private volatile int capacity;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public SqlResultCache(int capacity) {
+		super();
+		setCapacity(capacity);
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	// 0 disables the cache.
+	public synchronized void setCapacity(int capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("capacity must be >= 0 but was " + capacity);
+		}
+		this.capacity = capacity;
+		evict();
+	}
+
+	void changed(Connection con, String table) {
+		pending.computeIfAbsent(con, c -> new HashSet<>()).add(table);
+	}
+
+	void committed(Connection con) {
+		Set<String> tables = pending.remove(con);
+		if (tables != null) {
+			for (String table : tables) {
+				version(table).incrementAndGet();
+			}
+		}
+	}
+
+	void rolledBack(Connection con) {
+		pending.remove(con);
+	}
+
+	@SuppressWarnings("unchecked")
+	<T> T get(String key, Supplier<T> loader, String... tables) {
+		if (capacity == 0) {
+			return loader.get();
+		}
+		long[] current = new long[tables.length];
+		for (int i = 0; i < tables.length; i++) {
+			current[i] = version(tables[i]).get();
+		}
+		synchronized (this) {
+			Entry entry = map.get(key);
+			if (entry != null && Arrays.equals(entry.versions, current)) {
+				hits.incrementAndGet();
+				return (T) entry.value;
+			}
+		}
+		misses.incrementAndGet();
+		T value = loader.get();
+		synchronized (this) {
+			map.put(key, new Entry(current, value));
+			evict();
+		}
+		return value;
+	}
+
+	private void evict() {
+		Iterator<Entry> it = map.values().iterator();
+		while (map.size() > capacity && it.hasNext()) {
+			it.next();
+			it.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	private AtomicLong version(String table) {
+		AtomicLong version = versions.get(table);
+		if (version == null) {
+			version = versions.computeIfAbsent(table, t -> new AtomicLong());
+		}
+		return version;
+	}
+
+	public synchronized Stats stats() {
+		return new Stats(hits.get(), misses.get(), evictions.get(), map.size());
+	}
+
+}
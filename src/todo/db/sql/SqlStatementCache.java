@@ -0,0 +1,103 @@
+package todo.db.sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// LRU cache of prepared statements for one connection, keyed by sql text.
+// Not thread-safe, a connection is used by one thread at a time.
+public class SqlStatementCache {
+
+	public static class Stats {
+		public final long hits;
+		public final long misses;
+		public final long evictions;
+		public final int size;
+
+		Stats(long hits, long misses, long evictions, int size) {
+			super();
+			this.hits = hits;
+			this.misses = misses;
+			this.evictions = evictions;
+			this.size = size;
+		}
+
+		Stats plus(Stats other) {
+			return new Stats(hits + other.hits, misses + other.misses, evictions + other.evictions, size + other.size);
+		}
+
+		@Override
+		public String toString() {
+			return "hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + ", size=" + size;
+		}
+	}
+
+	static final Stats EMPTY_STATS = new Stats(0, 0, 0, 0);
+
+	private final Connection con;
+	private final LinkedHashMap<String, PreparedStatement> map = new LinkedHashMap<>(16, 0.75f, true);
+	private volatile int capacity;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public SqlStatementCache(Connection con, int capacity) {
+		super();
+		this.con = con;
+		setCapacity(capacity);
+	}
+
+	public void setCapacity(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be >= 1 but was " + capacity);
+		}
+		this.capacity = capacity;
+	}
+
+	public PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement pst = map.get(sql);
+		if (pst != null) {
+			hits.incrementAndGet();
+			pst.clearParameters();
+			return pst;
+		}
+		misses.incrementAndGet();
+		pst = con.prepareStatement(sql);
+		map.put(sql, pst);
+		evict();
+		return pst;
+	}
+
+	private void evict() throws SQLException {
+		Iterator<Map.Entry<String, PreparedStatement>> it = map.entrySet().iterator();
+		while (map.size() > capacity && it.hasNext()) {
+			PreparedStatement eldest = it.next().getValue();
+			it.remove();
+			evictions.incrementAndGet();
+			eldest.close();
+		}
+	}
+
+	public void close() throws SQLException {
+		SQLException ex = null;
+		for (PreparedStatement pst : map.values()) {
+			try {
+				pst.close();
+			} catch (SQLException e) {
+				ex = e;
+			}
+		}
+		map.clear();
+		if (ex != null) {
+			throw ex;
+		}
+	}
+
+	public Stats stats() {
+		return new Stats(hits.get(), misses.get(), evictions.get(), map.size());
+	}
+}
@@ -0,0 +1,47 @@
+package todo.db.sql;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Generates 26 char, time-ordered ids in the spirit of ULID: 48 bits of unix
+// millis, a 16 bit sequence and 64 random bits, encoded in Crockford base32.
+// Ids from one generator are strictly increasing, also when the clock goes
+// backwards or more than 65536 ids are requested within one milli.
+public class SqlTimeIdGenerator implements SqlIdGenerator {
+
+	private static final char[] ALPHABET = "0123456789ABCDEFGHJKMNPQRSTVWXYZ".toCharArray();
+	private static final int LENGTH = 26;
+
+	private final AtomicLong last = new AtomicLong();
+
+	@Override
+	public String nextId() {
+		long hi = nextTimeAndSequence();
+		long lo = ThreadLocalRandom.current().nextLong();
+		char[] chars = new char[LENGTH];
+		for (int i = 0; i < LENGTH; i++) {
+			int shift = (LENGTH - 1 - i) * 5;
+			long bits;
+			if (shift >= 64) {
+				bits = hi >>> (shift - 64);
+			} else if (shift + 5 <= 64) {
+				bits = lo >>> shift;
+			} else {
+				bits = (lo >>> shift) | (hi << (64 - shift));
+			}
+			chars[i] = ALPHABET[(int) (bits & 31)];
+		}
+		return new String(chars);
+	}
+
+	private long nextTimeAndSequence() {
+		long now = System.currentTimeMillis() << 16;
+		while (true) {
+			long prev = last.get();
+			long next = Math.max(now, prev + 1);
+			if (last.compareAndSet(prev, next)) {
+				return next;
+			}
+		}
+	}
+}
@@ -0,0 +1,9 @@
+package todo.db.sql;
+
+// HSQLDB transaction control modes (SET DATABASE TRANSACTION CONTROL).
+// LOCKS locks whole tables, so readers and writers wait for each other.
+// MVLOCKS lets READ COMMITTED readers run without locks while writers still
+// lock tables. MVCC locks rows only, and readers never wait.
+public enum SqlTxControl {
+	LOCKS, MVLOCKS, MVCC
+}
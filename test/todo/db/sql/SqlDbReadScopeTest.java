@@ -0,0 +1,106 @@
+package todo.db.sql;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import todo.db.Task;
+import todo.db.TaskStatus;
+import todo.db.User;
+
+public class SqlDbReadScopeTest {
+
+	private SqlDb db;
+
+	@BeforeEach
+	public void setup() throws Exception {
+		db = new SqlDb();
+		User user = new User(null, "user", "pw");
+		db.saveUser(user);
+		List<Task> tasks = new ArrayList<>();
+		for (int i = 0; i < 2; i++) {
+			tasks.add(new Task(null, Instant.parse("2019-01-01T00:00:00Z").plusSeconds(i), user.getId(), "task" + i,
+					TaskStatus.Waiting));
+		}
+		db.saveTasks(tasks);
+	}
+
+	@AfterEach
+	public void tearDown() throws Exception {
+		db.close();
+		try (Connection con = DriverManager.getConnection(SqlDb.DB_URL, SqlDb.DB_USER, SqlDb.DB_PASSWORD);
+				Statement st = con.createStatement()) {
+			st.execute("SHUTDOWN");
+		}
+	}
+
+	// As many streams as the read pool has connections, each holding its
+	// connection while its consumer reads again: the nested reads must join
+	// the held connection instead of waiting for a free one.
+	@Test
+	public void nestedReadsJoinTheStreamingConnection() throws Exception {
+		int threads = db.getReadPoolSize();
+		CountDownLatch streaming = new CountDownLatch(threads);
+		AtomicInteger found = new AtomicInteger();
+		Map<Thread, Throwable> failures = new ConcurrentHashMap<>();
+		List<Thread> list = new ArrayList<>();
+		long t0 = System.nanoTime();
+		for (int i = 0; i < threads; i++) {
+			Thread t = new Thread(() -> {
+				db.forEachTask(task -> {
+					streaming.countDown();
+					await(streaming);
+					if (db.findUserById(task.getUserId()) != null) {
+						found.incrementAndGet();
+					}
+				});
+			});
+			t.setUncaughtExceptionHandler(failures::put);
+			list.add(t);
+			t.start();
+		}
+		for (Thread t : list) {
+			t.join();
+		}
+		assertEquals(Map.of(), failures);
+		assertEquals(threads * 2, found.get());
+		assertTrue(System.nanoTime() - t0 < TimeUnit.SECONDS.toNanos(4), "nested reads waited for a connection");
+	}
+
+	// Writes cannot join the read-only connection; they run in their own
+	// transaction and the stream goes on afterwards.
+	@Test
+	public void nestedWritesRunInTheirOwnTransaction() {
+		List<String> titles = new ArrayList<>();
+		db.forEachTask(task -> {
+			task.setTitle(task.getTitle() + "!");
+			db.saveTask(task);
+			titles.add(db.findTaskById(task.getId()).getTitle());
+		});
+		assertEquals(List.of("task0!", "task1!"), titles);
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}